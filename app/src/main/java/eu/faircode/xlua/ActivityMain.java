@@ -275,6 +275,10 @@ public class ActivityMain extends AppCompatActivity {
 
         Log.i(TAG, "Selected option " + item.getTitle());
         switch (item.getItemId()) {
+            case R.id.menu_select:
+                fragmentMain.startSelection();
+                return true;
+
             case R.id.menu_help:
                 menuHelp();
                 return true;
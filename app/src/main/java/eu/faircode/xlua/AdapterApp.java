@@ -23,6 +23,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 import android.support.v7.util.DiffUtil;
 import android.support.v7.util.ListUpdateCallback;
@@ -46,9 +48,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -64,13 +68,20 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
     private List<XApp> filtered = new ArrayList<>();
     private Map<String, Boolean> expanded = new HashMap<>();
 
+    // Multi-selection of apps by package:uid
+    private boolean selecting = false;
+    private Set<String> selected = new HashSet<>();
+    private ISelectionListener selectionListener = null;
+
     private ExecutorService executor = Executors.newCachedThreadPool();
+    private Handler handler = new Handler(Looper.getMainLooper());
 
     public class ViewHolder extends RecyclerView.ViewHolder
             implements View.OnClickListener, View.OnLongClickListener, CompoundButton.OnCheckedChangeListener, XApp.IListener {
         XApp app;
 
         View itemView;
+        CheckBox cbSelected;
         ImageView ivExpander;
         ImageView ivIcon;
         TextView tvLabel;
@@ -86,6 +97,7 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
             super(itemView);
 
             this.itemView = itemView;
+            cbSelected = itemView.findViewById(R.id.cbSelected);
             ivExpander = itemView.findViewById(R.id.ivExpander);
             ivIcon = itemView.findViewById(R.id.ivIcon);
             tvLabel = itemView.findViewById(R.id.tvLabel);
@@ -116,6 +128,7 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
             tvPackage.setOnLongClickListener(this);
 
             cbAssigned.setOnCheckedChangeListener(this);
+            cbSelected.setOnCheckedChangeListener(this);
         }
 
         private void unwire() {
@@ -131,12 +144,15 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
             tvPackage.setOnLongClickListener(null);
 
             cbAssigned.setOnCheckedChangeListener(null);
+            cbSelected.setOnCheckedChangeListener(null);
         }
 
         @Override
         public void onClick(View view) {
             int id = view.getId();
-            if (id == R.id.ivExpander ||
+            if (selecting && id != R.id.ivExpander)
+                cbSelected.toggle();
+            else if (id == R.id.ivExpander ||
                     id == R.id.ivIcon || id == R.id.tvLabel ||
                     id == R.id.tvUid || id == R.id.tvPackage) {
                 if (!expanded.containsKey(app.packageName))
@@ -158,7 +174,15 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
         public void onCheckedChanged(final CompoundButton compoundButton, final boolean checked) {
             Log.i(TAG, "Check changed");
             int id = compoundButton.getId();
-            if (id == R.id.cbAssigned) {
+            if (id == R.id.cbSelected) {
+                String key = app.packageName + ":" + app.uid;
+                if (checked)
+                    selected.add(key);
+                else
+                    selected.remove(key);
+                if (selectionListener != null)
+                    selectionListener.onSelectionChanged(selected.size());
+            } else if (id == R.id.cbAssigned) {
                 if (checked) {
                     for (XHook hook : hooks)
                         app.assignments.add(new XAssignment(hook));
@@ -190,7 +214,9 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
         @Override
         public void onChange() {
             Log.i(TAG, "Group changed");
-            notifyItemChanged(getAdapterPosition());
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION)
+                notifyItemChanged(position);
         }
 
         void updateExpand() {
@@ -214,20 +240,143 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
         this.query = query;
         this.hooks = hooks;
 
+        Collections.sort(apps, getComparator());
+
+        all.clear();
+        all.addAll(apps);
+
+        getFilter().filter(query);
+    }
+
+    // Apply changed and removed apps (package:uid) to the current list
+    void update(List<XApp> apps, List<String> removed) {
+        Map<String, XApp> current = new HashMap<>();
+        for (XApp app : all)
+            current.put(app.packageName + ":" + app.uid, app);
+
+        boolean refilter = false;
+        Comparator<XApp> comparator = getComparator();
+        for (XApp app : apps) {
+            XApp existing = current.get(app.packageName + ":" + app.uid);
+            if (existing != null && TextUtils.equals(existing.label, app.label) &&
+                    existing.enabled == app.enabled && existing.icon == app.icon) {
+                existing.update(app);
+                existing.notifyChanged();
+            } else {
+                // Position or visibility might change
+                if (existing != null)
+                    all.remove(existing);
+                int index = Collections.binarySearch(all, app, comparator);
+                all.add(index < 0 ? -index - 1 : index, app);
+                refilter = true;
+            }
+        }
+
+        for (String key : removed) {
+            XApp existing = current.get(key);
+            if (existing != null) {
+                all.remove(existing);
+                refilter = true;
+            }
+        }
+
+        Log.i(TAG, "Updated apps=" + apps.size() + " removed=" + removed.size() + " refilter=" + refilter);
+        if (refilter)
+            getFilter().filter(query);
+    }
+
+    private Comparator<XApp> getComparator() {
         final Collator collator = Collator.getInstance(Locale.getDefault());
         collator.setStrength(Collator.SECONDARY); // Case insensitive, process accents etc
 
-        Collections.sort(apps, new Comparator<XApp>() {
+        return new Comparator<XApp>() {
             @Override
             public int compare(XApp app1, XApp app2) {
                 return collator.compare(app1.label, app2.label);
             }
-        });
+        };
+    }
 
-        all.clear();
-        all.addAll(apps);
+    void setSelectionListener(ISelectionListener listener) {
+        selectionListener = listener;
+    }
 
-        getFilter().filter(query);
+    void setSelecting(boolean value) {
+        selecting = value;
+        selected.clear();
+        notifyDataSetChanged();
+    }
+
+    int getSelectedCount() {
+        return selected.size();
+    }
+
+    // Select all listed apps
+    void selectAll() {
+        for (XApp app : filtered)
+            selected.add(app.packageName + ":" + app.uid);
+        notifyDataSetChanged();
+        if (selectionListener != null)
+            selectionListener.onSelectionChanged(selected.size());
+    }
+
+    // Assign or remove all hooks for the selected apps, updating the apps when stored
+    void assignSelected(final Context context, final boolean assign) {
+        final ArrayList<String> hookids = new ArrayList<>();
+        for (XHook hook : hooks)
+            hookids.add(hook.getId());
+
+        final List<XApp> apps = new ArrayList<>();
+        final ArrayList<Bundle> assignments = new ArrayList<>();
+        for (XApp app : all)
+            if (selected.contains(app.packageName + ":" + app.uid)) {
+                apps.add(app);
+
+                Bundle args = new Bundle();
+                args.putStringArrayList("hooks", hookids);
+                args.putString("packageName", app.packageName);
+                args.putInt("uid", app.uid);
+                args.putBoolean("delete", !assign);
+                args.putBoolean("kill", !app.persistent);
+                assignments.add(args);
+            }
+
+        final List<XHook> assigned = hooks;
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = null;
+                try {
+                    Bundle args = new Bundle();
+                    args.putParcelableArrayList("assignments", assignments);
+                    Bundle result = context.getContentResolver()
+                            .call(XSettings.URI, "xlua", "assignHooks", args);
+                    if (result == null)
+                        throw new IllegalStateException("assignHooks failed");
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
+                    error = ex;
+                }
+
+                final Throwable ex = error;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ex == null) {
+                            for (XApp app : apps) {
+                                app.assignments.clear();
+                                if (assign)
+                                    for (XHook hook : assigned)
+                                        app.assignments.add(new XAssignment(hook));
+                            }
+                            notifyDataSetChanged();
+                        }
+                        if (selectionListener != null)
+                            selectionListener.onAssigned(apps.size(), ex);
+                    }
+                });
+            }
+        });
     }
 
     void setShowAll(boolean value) {
@@ -402,9 +551,15 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
     @Override
     public void onBindViewHolder(final ViewHolder holder, int position) {
         holder.unwire();
+        if (holder.app != null)
+            holder.app.setListener(null);
         holder.app = filtered.get(position);
         holder.app.setListener(holder);
 
+        // Selection
+        holder.cbSelected.setVisibility(selecting ? View.VISIBLE : View.GONE);
+        holder.cbSelected.setChecked(selected.contains(holder.app.packageName + ":" + holder.app.uid));
+
         // App icon
         if (holder.app.icon <= 0)
             holder.ivIcon.setImageResource(android.R.drawable.sym_def_app_icon);
@@ -433,8 +588,16 @@ public class AdapterApp extends RecyclerView.Adapter<AdapterApp.ViewHolder> impl
         holder.wire();
     }
 
+    interface ISelectionListener {
+        void onSelectionChanged(int count);
+
+        void onAssigned(int count, Throwable ex);
+    }
+
     @Override
     public void onViewRecycled(ViewHolder holder) {
         holder.unwire();
+        if (holder.app != null)
+            holder.app.setListener(null);
     }
 }
@@ -25,6 +25,7 @@ import android.os.Bundle;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.RecyclerView;
 import android.text.Html;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -35,6 +36,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.text.Collator;
+import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -209,6 +211,8 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
         boolean exception = false;
         boolean installed = true;
         long used = -1;
+        long restricted = 0;
+        XStats stats = new XStats();
         boolean assigned = false;
         for (XAssignment assignment : app.assignments)
             if (assignment.hook.getGroup().equals(holder.group)) {
@@ -218,6 +222,9 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
                     installed = false;
                 if (assignment.restricted)
                     used = Math.max(used, assignment.used);
+                restricted += assignment.restrictedCount;
+                if (assignment.stats != null)
+                    stats.add(assignment.stats);
                 assigned = true;
             }
 
@@ -229,9 +236,20 @@ public class AdapterGroup extends RecyclerView.Adapter<AdapterGroup.ViewHolder>
 
         holder.ivException.setVisibility(exception && assigned ? View.VISIBLE : View.GONE);
         holder.ivInstalled.setVisibility(installed && assigned ? View.VISIBLE : View.GONE);
-        holder.tvUsed.setVisibility(used < 0 ? View.GONE : View.VISIBLE);
-        holder.tvUsed.setText(used < 0 ? "" : DateUtils.formatDateTime(context, used,
-                DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL));
+        List<String> info = new ArrayList<>();
+        if (used >= 0)
+            info.add(context.getString(R.string.title_used,
+                    DateUtils.formatDateTime(context, used,
+                            DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_ABBREV_ALL),
+                    NumberFormat.getIntegerInstance().format(restricted)));
+        if (stats.count > 0)
+            info.add(context.getString(R.string.title_stats,
+                    XStats.formatMicros(stats.getPercentile(50)),
+                    XStats.formatMicros(stats.getPercentile(95)),
+                    XStats.formatMicros(stats.getPercentile(99))));
+
+        holder.tvUsed.setVisibility(info.size() == 0 ? View.GONE : View.VISIBLE);
+        holder.tvUsed.setText(TextUtils.join("\n", info));
         holder.tvGroup.setText(name);
         holder.cbAssigned.setChecked(assigned);
 
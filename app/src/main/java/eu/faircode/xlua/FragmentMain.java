@@ -21,9 +21,16 @@ package eu.faircode.xlua;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcelable;
+import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.Snackbar;
@@ -31,15 +38,25 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.view.ActionMode;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FragmentMain extends Fragment {
     private final static String TAG = "XLua.Main";
@@ -48,6 +65,21 @@ public class FragmentMain extends Fragment {
     private String query = null;
     private AdapterApp rvAdapter;
 
+    // Loaded state, changes since are applied as delta
+    private String epoch = null;
+    private long sequence = 0;
+    private List<XHook> hooks = null;
+    private boolean loading = false;
+
+    // Changes are pushed while subscribed, broadcasts are the fallback
+    private boolean subscribed = false;
+    private boolean receiving = false;
+    private Message deferred = null;
+
+    private ActionMode actionMode = null;
+
+    private ExecutorService executor = Executors.newSingleThreadExecutor();
+
     @Override
     @Nullable
     public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
@@ -60,6 +92,7 @@ public class FragmentMain extends Fragment {
         llm.setAutoMeasureEnabled(true);
         rvApplication.setLayoutManager(llm);
         rvAdapter = new AdapterApp(getActivity());
+        rvAdapter.setSelectionListener(selectionListener);
         rvApplication.setAdapter(rvAdapter);
 
         return main;
@@ -69,28 +102,31 @@ public class FragmentMain extends Fragment {
     public void onResume() {
         super.onResume();
 
-        IntentFilter ifData = new IntentFilter(XSettings.ACTION_DATA_CHANGED);
-        getContext().registerReceiver(dataChangedReceiver, ifData);
-
-        IntentFilter ifPackage = new IntentFilter();
-        ifPackage.addAction(Intent.ACTION_PACKAGE_ADDED);
-        ifPackage.addAction(Intent.ACTION_PACKAGE_CHANGED);
-        ifPackage.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
-        ifPackage.addDataScheme("package");
-        getContext().registerReceiver(packageChangedReceiver, ifPackage);
-
         // Load data
         Log.i(TAG, "Starting data loader");
-        getActivity().getSupportLoaderManager().restartLoader(
-                ActivityMain.LOADER_DATA, new Bundle(), dataLoaderCallbacks).forceLoad();
+        load();
     }
 
     @Override
     public void onPause() {
         super.onPause();
 
-        getContext().unregisterReceiver(dataChangedReceiver);
-        getContext().unregisterReceiver(packageChangedReceiver);
+        if (subscribed) {
+            subscribed = false;
+            unsubscribe();
+        }
+
+        if (receiving) {
+            receiving = false;
+            getContext().unregisterReceiver(dataChangedReceiver);
+            getContext().unregisterReceiver(packageChangedReceiver);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        executor.shutdown();
     }
 
     public void setShowAll(boolean showAll) {
@@ -99,26 +135,243 @@ public class FragmentMain extends Fragment {
             rvAdapter.setShowAll(showAll);
     }
 
+    public void startSelection() {
+        if (rvAdapter != null && actionMode == null)
+            actionMode = ((AppCompatActivity) getActivity()).startSupportActionMode(selectionCallback);
+    }
+
+    private void assignSelected(final boolean assign) {
+        final int count = rvAdapter.getSelectedCount();
+        if (count == 0)
+            return;
+
+        new AlertDialog.Builder(getContext())
+                .setMessage(getString(assign ? R.string.msg_restrict_selected : R.string.msg_unrestrict_selected, count))
+                .setPositiveButton(android.R.string.yes, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (rvAdapter != null)
+                            rvAdapter.assignSelected(getContext(), assign);
+                    }
+                })
+                .setNegativeButton(android.R.string.no, null)
+                .show();
+    }
+
+    private ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.select, menu);
+            mode.setTitle(getString(R.string.msg_selected, 0));
+            rvAdapter.setSelecting(true);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            switch (item.getItemId()) {
+                case R.id.menu_restrict_selected:
+                    assignSelected(true);
+                    return true;
+
+                case R.id.menu_unrestrict_selected:
+                    assignSelected(false);
+                    return true;
+
+                case R.id.menu_select_all:
+                    rvAdapter.selectAll();
+                    return true;
+
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            if (rvAdapter != null)
+                rvAdapter.setSelecting(false);
+        }
+    };
+
+    private AdapterApp.ISelectionListener selectionListener = new AdapterApp.ISelectionListener() {
+        @Override
+        public void onSelectionChanged(int count) {
+            if (actionMode != null)
+                actionMode.setTitle(getString(R.string.msg_selected, count));
+        }
+
+        @Override
+        public void onAssigned(int count, Throwable ex) {
+            // Keep the selection to allow a retry
+            if (ex == null) {
+                if (actionMode != null)
+                    actionMode.finish();
+            } else if (getView() != null)
+                Snackbar.make(getView(), ex.toString(), Snackbar.LENGTH_LONG).show();
+        }
+    };
+
     public void filter(String query) {
         this.query = query;
         if (rvAdapter != null)
             rvAdapter.getFilter().filter(query);
     }
 
+    private void load() {
+        Bundle args = new Bundle();
+        if (hooks != null) {
+            args.putString("epoch", epoch);
+            args.putLong("sequence", sequence);
+        }
+        if (!subscribed)
+            args.putParcelable("listener", listener);
+        loading = true;
+        getActivity().getSupportLoaderManager().restartLoader(
+                ActivityMain.LOADER_DATA, args, dataLoaderCallbacks).forceLoad();
+    }
+
+    private void unsubscribe() {
+        final Context context = getContext().getApplicationContext();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Bundle args = new Bundle();
+                    args.putBinder("listener", listener.getBinder());
+                    context.getContentResolver()
+                            .call(XSettings.URI, "xlua", "unsubscribe", args);
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
+                }
+            }
+        });
+    }
+
+    // Receives changes pushed by the settings process, one message at a time
+    private final Messenger listener = new Messenger(new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (loading)
+                deferred = Message.obtain(msg); // acknowledged when loaded
+            else
+                onChanges(msg);
+            return true;
+        }
+    }));
+
+    private void onChanges(Message msg) {
+        Bundle data = msg.getData();
+        data.setClassLoader(XSettings.class.getClassLoader());
+
+        // Fell behind and unsubscribed, subscribe again to catch up, not acknowledged
+        if (data.getBoolean("dropped")) {
+            subscribed = false;
+            if (isResumed())
+                load();
+            return;
+        }
+
+        if (data.getBoolean("reset") || hooks == null)
+            load();
+        else if (data.getString("epoch").equals(epoch) && data.getLong("sequence") > sequence) {
+            List<XApp> apps = data.getParcelableArrayList("apps");
+            attach(hooks, apps, data.<Parcelable>getParcelableArrayList("stats"));
+            rvAdapter.update(apps, data.getStringArrayList("removed"));
+            sequence = data.getLong("sequence");
+        }
+
+        // Ready for more
+        try {
+            Message ack = Message.obtain();
+            ack.replyTo = listener;
+            msg.replyTo.send(ack);
+        } catch (RemoteException ex) {
+            Log.w(TAG, ex.toString());
+        }
+    }
+
+    // Resolve hooks of assignments and attach execution times
+    private static void attach(List<XHook> hooks, List<XApp> apps, List<Parcelable> stats) {
+        Map<String, XHook> map = new HashMap<>();
+        for (XHook hook : hooks)
+            map.put(hook.getId(), hook);
+        for (XApp app : apps)
+            for (Iterator<XAssignment> it = app.assignments.iterator(); it.hasNext(); ) {
+                XAssignment assignment = it.next();
+                if (!assignment.resolve(map)) {
+                    Log.w(TAG, "Hook " + assignment.hookid + " not found");
+                    it.remove();
+                }
+            }
+
+        Map<String, XStats> times = new HashMap<>();
+        for (Parcelable parcelable : stats) {
+            XStats s = (XStats) parcelable;
+            times.put(s.packageName + ":" + s.uid + "/" + s.hook, s);
+        }
+        for (XApp app : apps)
+            for (XAssignment assignment : app.assignments)
+                assignment.stats = times.get(app.packageName + ":" + app.uid + "/" + assignment.hookid);
+    }
+
     LoaderManager.LoaderCallbacks dataLoaderCallbacks = new LoaderManager.LoaderCallbacks<DataHolder>() {
         @Override
         public Loader<DataHolder> onCreateLoader(int id, Bundle args) {
-            return new DataLoader(getContext());
+            return new DataLoader(getContext(), args, hooks);
         }
 
         @Override
         public void onLoadFinished(Loader<DataHolder> loader, DataHolder data) {
-            if (data.exception == null)
-                rvAdapter.set(showAll, query, data.hooks, data.apps);
-            else {
+            loading = false;
+
+            if (data.subscribed) {
+                subscribed = true;
+                if (!isResumed()) {
+                    subscribed = false;
+                    unsubscribe();
+                } else if (receiving) {
+                    receiving = false;
+                    getContext().unregisterReceiver(dataChangedReceiver);
+                    getContext().unregisterReceiver(packageChangedReceiver);
+                }
+            } else if (!subscribed && !receiving && isResumed()) {
+                receiving = true;
+                IntentFilter ifData = new IntentFilter(XSettings.ACTION_DATA_CHANGED);
+                getContext().registerReceiver(dataChangedReceiver, ifData);
+
+                IntentFilter ifPackage = new IntentFilter();
+                ifPackage.addAction(Intent.ACTION_PACKAGE_ADDED);
+                ifPackage.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                ifPackage.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
+                ifPackage.addDataScheme("package");
+                getContext().registerReceiver(packageChangedReceiver, ifPackage);
+            }
+
+            if (data.exception == null) {
+                if (data.delta)
+                    rvAdapter.update(data.apps, data.removed);
+                else
+                    rvAdapter.set(showAll, query, data.hooks, data.apps);
+                epoch = data.epoch;
+                sequence = data.sequence;
+                hooks = data.hooks;
+            } else {
                 Log.e(TAG, Log.getStackTraceString(data.exception));
                 Snackbar.make(getView(), data.exception.toString(), Snackbar.LENGTH_LONG).show();
             }
+
+            if (deferred != null) {
+                Message msg = deferred;
+                deferred = null;
+                onChanges(msg);
+            }
         }
 
         @Override
@@ -128,8 +381,17 @@ public class FragmentMain extends Fragment {
     };
 
     private static class DataLoader extends AsyncTaskLoader<DataHolder> {
-        DataLoader(Context context) {
+        private String epoch;
+        private long sequence;
+        private List<XHook> hooks;
+        private Messenger listener;
+
+        DataLoader(Context context, Bundle args, List<XHook> hooks) {
             super(context);
+            this.epoch = args.getString("epoch");
+            this.sequence = args.getLong("sequence");
+            this.hooks = hooks;
+            this.listener = args.getParcelable("listener");
         }
 
         @Nullable
@@ -138,30 +400,85 @@ public class FragmentMain extends Fragment {
             Log.i(TAG, "Data loader started");
             final DataHolder data = new DataHolder();
             try {
-                if (Util.isDebuggable(getContext())) {
-                    String apk = getContext().getApplicationInfo().publicSourceDir;
+                List<Parcelable> stats = null;
+
+                // Get changes since the last load
+                if (this.epoch != null) {
                     Bundle args = new Bundle();
-                    args.putParcelableArrayList("hooks", XHook.readHooks(apk));
-                    getContext().getContentResolver()
-                            .call(XSettings.URI, "xlua", "putHooks", args);
+                    args.putString("epoch", this.epoch);
+                    args.putLong("sequence", this.sequence);
+                    Bundle result = getContext().getContentResolver()
+                            .call(XSettings.URI, "xlua", "getAppsChangedSince", args);
+                    result.setClassLoader(XSettings.class.getClassLoader());
+                    if (!result.getBoolean("reset")) {
+                        data.delta = true;
+                        data.epoch = result.getString("epoch");
+                        data.sequence = result.getLong("sequence");
+                        data.hooks = this.hooks;
+                        data.apps = result.getParcelableArrayList("apps");
+                        data.removed = result.getStringArrayList("removed");
+                        stats = result.getParcelableArrayList("stats");
+                    }
                 }
 
-                Bundle result1 = getContext().getContentResolver()
-                        .call(XSettings.URI, "xlua", "getHooks", new Bundle());
-                Bundle result2 = getContext().getContentResolver()
-                        .call(XSettings.URI, "xlua", "getApps", new Bundle());
-
-                result1.setClassLoader(XSettings.class.getClassLoader());
-                result2.setClassLoader(XSettings.class.getClassLoader());
+                if (!data.delta) {
+                    if (Util.isDebuggable(getContext())) {
+                        String apk = getContext().getApplicationInfo().publicSourceDir;
+                        Bundle args = new Bundle();
+                        args.putParcelableArrayList("hooks", XHook.readHooks(apk));
+                        getContext().getContentResolver()
+                                .call(XSettings.URI, "xlua", "putHooks", args);
+                    }
+
+                    Bundle result1 = getContext().getContentResolver()
+                            .call(XSettings.URI, "xlua", "getHooks", new Bundle());
+                    Bundle result2 = getContext().getContentResolver()
+                            .call(XSettings.URI, "xlua", "getStats", new Bundle());
+
+                    result1.setClassLoader(XSettings.class.getClassLoader());
+                    result2.setClassLoader(XSettings.class.getClassLoader());
+
+                    data.hooks = result1.getParcelableArrayList("hooks");
+                    stats = result2.getParcelableArrayList("stats");
+
+                    // Get apps page by page
+                    String token = null;
+                    do {
+                        Bundle args = new Bundle();
+                        args.putString("token", token);
+                        Bundle result = getContext().getContentResolver()
+                                .call(XSettings.URI, "xlua", "getApps", args);
+                        result.setClassLoader(XSettings.class.getClassLoader());
+                        List<XApp> page = result.getParcelableArrayList("apps");
+                        data.apps.addAll(page);
+                        data.epoch = result.getString("epoch");
+                        data.sequence = result.getLong("sequence");
+                        token = result.getString("next");
+                    } while (token != null);
+                }
 
-                data.hooks = result1.getParcelableArrayList("hooks");
-                data.apps = result2.getParcelableArrayList("apps");
+                attach(data.hooks, data.apps, stats);
             } catch (Throwable ex) {
-                data.hooks.clear();
+                data.delta = false;
+                data.hooks = new ArrayList<>();
                 data.apps.clear();
                 data.exception = ex;
             }
 
+            // Get changes after the loaded state pushed
+            if (this.listener != null && data.exception == null)
+                try {
+                    Bundle args = new Bundle();
+                    args.putBinder("listener", this.listener.getBinder());
+                    args.putString("epoch", data.epoch);
+                    args.putLong("sequence", data.sequence);
+                    Bundle result = getContext().getContentResolver()
+                            .call(XSettings.URI, "xlua", "subscribe", args);
+                    data.subscribed = (result != null && result.getBoolean("subscribed"));
+                } catch (Throwable ex) {
+                    Log.e(TAG, Log.getStackTraceString(ex));
+                }
+
             Log.i(TAG, "Data loader finished hooks=" + data.hooks.size() + " apps=" + data.apps.size());
             return data;
         }
@@ -171,8 +488,7 @@ public class FragmentMain extends Fragment {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i(TAG, "Received " + intent);
-            getActivity().getSupportLoaderManager().restartLoader(
-                    ActivityMain.LOADER_DATA, new Bundle(), dataLoaderCallbacks).forceLoad();
+            load();
         }
     };
 
@@ -180,14 +496,18 @@ public class FragmentMain extends Fragment {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i(TAG, "Received " + intent);
-            getActivity().getSupportLoaderManager().restartLoader(
-                    ActivityMain.LOADER_DATA, new Bundle(), dataLoaderCallbacks).forceLoad();
+            load();
         }
     };
 
     private static class DataHolder {
+        boolean delta = false;
+        boolean subscribed = false;
+        String epoch = null;
+        long sequence = 0;
         List<XHook> hooks = new ArrayList<>();
         List<XApp> apps = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
         Throwable exception = null;
     }
 }
@@ -27,10 +27,13 @@ import android.arch.lifecycle.Lifecycle;
 import android.arch.lifecycle.LifecycleObserver;
 import android.arch.lifecycle.LifecycleOwner;
 import android.arch.lifecycle.OnLifecycleEvent;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Process;
 import android.os.UserHandle;
@@ -119,6 +122,13 @@ class Util {
         return (Context) c.invoke(context, "android", 0, uh);
     }
 
+    static void notifyChangeAsUser(Context context, Uri uri, int userid) throws Throwable {
+        // public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork, int userHandle)
+        Method mNotifyChange = ContentResolver.class.getDeclaredMethod(
+                "notifyChange", Uri.class, ContentObserver.class, boolean.class, int.class);
+        mNotifyChange.invoke(context.getContentResolver(), uri, null, false, userid);
+    }
+
     static void notifyAsUser(Context context, String tag, int id, Notification notification, int userid) throws Throwable {
         NotificationManager nm = context.getSystemService(NotificationManager.class);
 
@@ -147,6 +157,13 @@ class Util {
         Log.i(TAG, "Cancelled " + tag + ":" + id + " as " + userid);
     }
 
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
     static boolean isDebuggable(Context context) {
         return ((context.getApplicationContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
     }
@@ -0,0 +1,79 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+// Built-in restrictions, which can be used instead of a Lua script
+abstract class XAction {
+    abstract boolean isBefore();
+
+    // Returns if the call was restricted
+    abstract boolean execute(XC_MethodHook.MethodHookParam param) throws Throwable;
+
+    static XAction get(XHook hook) {
+        String action = hook.getAction();
+        switch (action) {
+            case "result_null":
+                return new ResultNull();
+            case "cursor_empty":
+                return new CursorEmpty();
+            default:
+                throw new IllegalArgumentException("Unknown action " + action + " for " + hook.getId());
+        }
+    }
+
+    // Skip the method and return null
+    private static class ResultNull extends XAction {
+        @Override
+        boolean isBefore() {
+            return true;
+        }
+
+        @Override
+        boolean execute(XC_MethodHook.MethodHookParam param) {
+            param.setResult(null);
+            return true;
+        }
+    }
+
+    // Replace the resulting cursor by an empty cursor with the same columns
+    private static class CursorEmpty extends XAction {
+        @Override
+        boolean isBefore() {
+            return false;
+        }
+
+        @Override
+        boolean execute(XC_MethodHook.MethodHookParam param) {
+            Cursor cursor = (Cursor) param.getResult();
+            if (cursor == null)
+                return false;
+
+            MatrixCursor result = new MatrixCursor(cursor.getColumnNames());
+            result.setExtras(cursor.getExtras());
+            param.setResult(result);
+            return true;
+        }
+    }
+}
@@ -95,6 +95,15 @@ public class XApp implements Parcelable {
         return 0;
     }
 
+    // Update in place, so views bound to this app stay valid
+    void update(XApp other) {
+        this.icon = other.icon;
+        this.label = other.label;
+        this.enabled = other.enabled;
+        this.persistent = other.persistent;
+        this.assignments = other.assignments;
+    }
+
     private IListener listener = null;
 
     void setListener(IListener listener) {
@@ -3,17 +3,35 @@ package eu.faircode.xlua;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Map;
+
 public class XAssignment implements Parcelable {
-    XHook hook;
+    String hookid;
+    XHook hook; // resolved by the receiver, not parceled
     long installed = -1;
     long used = -1;
     boolean restricted = false;
     String exception;
 
+    // Usage counters
+    long firstUsed = -1;
+    long usedCount = 0;
+    long restrictedCount = 0;
+
+    // Execution times, not parceled
+    XStats stats = null;
+
     XAssignment(XHook hook) {
+        this.hookid = hook.getId();
         this.hook = hook;
     }
 
+    // Resolve the hook by id, returns false if the hook does not exist
+    boolean resolve(Map<String, XHook> hooks) {
+        this.hook = hooks.get(this.hookid);
+        return (this.hook != null);
+    }
+
     public static final Parcelable.Creator<XAssignment> CREATOR = new Parcelable.Creator<XAssignment>() {
         public XAssignment createFromParcel(Parcel in) {
             return new XAssignment(in);
@@ -30,11 +48,14 @@ public class XAssignment implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
-        out.writeParcelable(this.hook, 0);
+        out.writeString(this.hookid);
         out.writeLong(this.installed);
         out.writeLong(this.used);
         out.writeInt(this.restricted ? 1 : 0);
         writeString(out, this.exception);
+        out.writeLong(this.firstUsed);
+        out.writeLong(this.usedCount);
+        out.writeLong(this.restrictedCount);
     }
 
     private void writeString(Parcel out, String value) {
@@ -44,11 +65,14 @@ public class XAssignment implements Parcelable {
     }
 
     private void readFromParcel(Parcel in) {
-        this.hook = in.readParcelable(XHook.class.getClassLoader());
+        this.hookid = in.readString();
         this.installed = in.readLong();
         this.used = in.readLong();
         this.restricted = (in.readInt() == 1);
         this.exception = readString(in);
+        this.firstUsed = in.readLong();
+        this.usedCount = in.readLong();
+        this.restrictedCount = in.readLong();
     }
 
     private String readString(Parcel in) {
@@ -65,11 +89,11 @@ public class XAssignment implements Parcelable {
         if (!(obj instanceof XAssignment))
             return false;
         XAssignment other = (XAssignment) obj;
-        return this.hook.getId().equals(other.hook.getId());
+        return this.hookid.equals(other.hookid);
     }
 
     @Override
     public int hashCode() {
-        return this.hook.getId().hashCode();
+        return this.hookid.hashCode();
     }
 }
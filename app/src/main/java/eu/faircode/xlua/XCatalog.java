@@ -0,0 +1,163 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Read-only image of the hook catalog in shared memory, mapped by app processes
+// Layout: int count, count x (int offset, int length, int code offset, int code length),
+// marshalled hooks without scripts, compiled scripts
+// Apps unmarshal the small hook records they need and read compiled scripts in place on first use
+@TargetApi(Build.VERSION_CODES.O_MR1)
+class XCatalog {
+    private static final String TAG = "XLua.Catalog";
+
+    private static final int ENTRY = 4 * 4;
+
+    private final SharedMemory memory;
+    private final Map<String, Integer> indices;
+
+    private XCatalog(SharedMemory memory, Map<String, Integer> indices) {
+        this.memory = memory;
+        this.indices = indices;
+    }
+
+    static XCatalog create(Collection<XHook> hooks) throws ErrnoException {
+        Map<String, Integer> indices = new HashMap<>();
+        List<byte[]> marshalled = new ArrayList<>();
+        List<byte[]> codes = new ArrayList<>();
+        for (XHook hook : hooks) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                hook.writeHeaderToParcel(parcel);
+                marshalled.add(parcel.marshall());
+            } finally {
+                parcel.recycle();
+            }
+            codes.add(hook.getLuaBytecode());
+            indices.put(hook.getId(), indices.size());
+        }
+
+        // Build image
+        int offset = 4 + marshalled.size() * ENTRY;
+        int size = offset;
+        for (byte[] bytes : marshalled)
+            size += bytes.length;
+        int codeOffset = size;
+        for (byte[] code : codes)
+            if (code != null)
+                size += code.length;
+
+        ByteBuffer header = ByteBuffer.allocate(offset);
+        header.putInt(marshalled.size());
+        for (int i = 0; i < marshalled.size(); i++) {
+            byte[] code = codes.get(i);
+            header.putInt(offset);
+            header.putInt(marshalled.get(i).length);
+            header.putInt(code == null ? -1 : codeOffset);
+            header.putInt(code == null ? -1 : code.length);
+            offset += marshalled.get(i).length;
+            if (code != null)
+                codeOffset += code.length;
+        }
+
+        SharedMemory memory = SharedMemory.create("xlua_catalog", size);
+        ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.put(header.array());
+            for (byte[] bytes : marshalled)
+                buffer.put(bytes);
+            for (byte[] code : codes)
+                if (code != null)
+                    buffer.put(code);
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+
+        Log.i(TAG, "Created hooks=" + marshalled.size() + " size=" + memory.getSize());
+        return new XCatalog(memory, indices);
+    }
+
+    SharedMemory getMemory() {
+        return this.memory;
+    }
+
+    int indexOf(String hookid) {
+        Integer index = this.indices.get(hookid);
+        return (index == null ? -1 : index);
+    }
+
+    // The mapping stays for the lifetime of the process, because hooks read their scripts from it
+    static List<XHook> read(Parcelable catalog, int[] indices) throws ErrnoException {
+        List<XHook> hooks = new ArrayList<>();
+        SharedMemory memory = (SharedMemory) catalog;
+        try {
+            ByteBuffer buffer = memory.mapReadOnly();
+            for (int index : indices) {
+                int entry = 4 + index * ENTRY;
+                int offset = buffer.getInt(entry);
+                int length = buffer.getInt(entry + 4);
+                int codeOffset = buffer.getInt(entry + 8);
+                int codeLength = buffer.getInt(entry + 12);
+
+                byte[] bytes = new byte[length];
+                buffer.position(offset);
+                buffer.get(bytes);
+
+                XHook hook;
+                Parcel parcel = Parcel.obtain();
+                try {
+                    parcel.unmarshall(bytes, 0, length);
+                    parcel.setDataPosition(0);
+                    hook = XHook.CREATOR.createFromParcel(parcel);
+                } finally {
+                    parcel.recycle();
+                }
+
+                if (codeOffset >= 0) {
+                    ByteBuffer code = buffer.duplicate();
+                    code.limit(codeOffset + codeLength);
+                    code.position(codeOffset);
+                    hook.setLuaCode(code.slice());
+                }
+
+                hooks.add(hook);
+            }
+        } finally {
+            memory.close(); // mapping stays valid
+        }
+        return hooks;
+    }
+}
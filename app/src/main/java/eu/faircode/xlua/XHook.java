@@ -29,8 +29,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -53,9 +55,18 @@ public class XHook implements Parcelable {
     private boolean enabled;
 
     private String luaScript;
+    private byte[] luaBytecode;
+    private boolean luaBefore;
+    private boolean luaAfter;
+
+    private String action;
+    private List<XPredicate> predicates;
 
     private Bundle extras;
 
+    // Compiled script read in place from a shared catalog, not parceled
+    private ByteBuffer luaCode = null;
+
     public XHook() {
         setExtras(new Bundle());
     }
@@ -114,6 +125,37 @@ public class XHook implements Parcelable {
         return this.luaScript;
     }
 
+    public byte[] getLuaBytecode() {
+        return this.luaBytecode;
+    }
+
+    boolean hasLuaBytecode() {
+        return (this.luaBytecode != null || this.luaCode != null);
+    }
+
+    InputStream openLuaBytecode() {
+        if (this.luaCode == null)
+            return new ByteArrayInputStream(this.luaBytecode);
+        else
+            return new ByteBufferInputStream(this.luaCode.duplicate());
+    }
+
+    public String getAction() {
+        return this.action;
+    }
+
+    public List<XPredicate> getPredicates() {
+        return this.predicates;
+    }
+
+    public boolean isLuaBefore() {
+        return this.luaBefore;
+    }
+
+    public boolean isLuaAfter() {
+        return this.luaAfter;
+    }
+
     public Bundle getExtras() {
         return this.extras;
     }
@@ -126,6 +168,19 @@ public class XHook implements Parcelable {
         this.luaScript = script;
     }
 
+    void setLuaBytecode(byte[] bytecode) {
+        this.luaBytecode = bytecode;
+    }
+
+    void setLuaCode(ByteBuffer code) {
+        this.luaCode = code;
+    }
+
+    void setLuaFunctions(boolean before, boolean after) {
+        this.luaBefore = before;
+        this.luaAfter = after;
+    }
+
     void setExtras(Bundle extras) {
         this.extras = extras;
     }
@@ -152,7 +207,7 @@ public class XHook implements Parcelable {
 
                     // Link script
                     String script = hook.getLuaScript();
-                    if (script.startsWith("@")) {
+                    if (script != null && script.startsWith("@")) {
                         ZipEntry luaEntry = zipFile.getEntry("assets/" + script.substring(1) + ".lua");
                         if (luaEntry == null)
                             throw new IllegalArgumentException(script + " not found for " + hook.getId());
@@ -208,6 +263,15 @@ public class XHook implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        write(out, true);
+    }
+
+    // Without the bytecode and, if there is bytecode, without the script
+    void writeHeaderToParcel(Parcel out) {
+        write(out, false);
+    }
+
+    private void write(Parcel out, boolean code) {
         writeString(out, this.collection);
         writeString(out, this.group);
         writeString(out, this.name);
@@ -227,7 +291,17 @@ public class XHook implements Parcelable {
         out.writeInt(this.maxSdk);
         out.writeInt(this.enabled ? 1 : 0);
 
-        writeString(out, this.luaScript);
+        writeString(out, code || this.luaBytecode == null ? this.luaScript : null);
+        out.writeByteArray(code ? this.luaBytecode : null);
+        out.writeInt(this.luaBefore ? 1 : 0);
+        out.writeInt(this.luaAfter ? 1 : 0);
+
+        writeString(out, this.action);
+
+        int predc = (this.predicates == null ? -1 : this.predicates.size());
+        out.writeInt(predc);
+        for (int i = 0; i < predc; i++)
+            out.writeParcelable(this.predicates.get(i), 0);
 
         out.writeBundle(extras);
     }
@@ -259,6 +333,16 @@ public class XHook implements Parcelable {
         this.enabled = (in.readInt() == 1);
 
         this.luaScript = readString(in);
+        this.luaBytecode = in.createByteArray();
+        this.luaBefore = (in.readInt() == 1);
+        this.luaAfter = (in.readInt() == 1);
+
+        this.action = readString(in);
+
+        int predc = in.readInt();
+        this.predicates = (predc < 0 ? null : new ArrayList<XPredicate>());
+        for (int i = 0; i < predc; i++)
+            this.predicates.add((XPredicate) in.readParcelable(XPredicate.class.getClassLoader()));
 
         this.extras = in.readBundle();
     }
@@ -300,6 +384,14 @@ public class XHook implements Parcelable {
 
         jroot.put("luaScript", this.luaScript);
 
+        jroot.put("action", this.action);
+        if (this.predicates != null) {
+            JSONArray jpred = new JSONArray();
+            for (XPredicate predicate : this.predicates)
+                jpred.put(predicate.toJSONObject());
+            jroot.put("predicates", jpred);
+        }
+
         return jroot;
     }
 
@@ -329,7 +421,19 @@ public class XHook implements Parcelable {
         hook.maxSdk = jroot.getInt("maxSdk");
         hook.enabled = jroot.getBoolean("enabled");
 
-        hook.luaScript = jroot.getString("luaScript");
+        // Either a Lua script or a built-in action
+        hook.luaScript = (jroot.has("luaScript") ? jroot.getString("luaScript") : null);
+        hook.action = (jroot.has("action") ? jroot.getString("action") : null);
+        if (hook.luaScript == null && hook.action == null)
+            throw new JSONException("No luaScript or action for " + hook.getId());
+
+        // All predicates need to match for the hook to run
+        if (jroot.has("predicates")) {
+            JSONArray jpred = jroot.getJSONArray("predicates");
+            hook.predicates = new ArrayList<>();
+            for (int i = 0; i < jpred.length(); i++)
+                hook.predicates.add(XPredicate.fromJSONObject(jpred.getJSONObject(i)));
+        }
 
         return hook;
     }
@@ -339,6 +443,33 @@ public class XHook implements Parcelable {
         return this.getId() + "@" + this.className + ":" + this.methodName;
     }
 
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return (this.buffer.hasRemaining() ? this.buffer.get() & 0xff : -1);
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!this.buffer.hasRemaining())
+                return -1;
+            length = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (!(obj instanceof XHook))
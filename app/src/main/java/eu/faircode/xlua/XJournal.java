@@ -0,0 +1,220 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Memory mapped, append-only journal of assignment events
+// Layout: int magic, long generation, records of int length, long crc, payload
+// Strings are stored as int length, UTF-8 bytes, because writeUTF is limited to 64 KB
+// Records of another generation or with a wrong checksum end the journal,
+// so a partly written record is ignored and compacting only needs to increase the generation
+// Not thread safe
+class XJournal {
+    private static final String TAG = "XLua.Journal";
+
+    private static final int MAGIC = 0x584C4A32; // XLJ2
+    private static final int SIZE = 1024 * 1024; // bytes
+    private static final int MAX_EXCEPTION = 64 * 1024; // characters
+    private static final int HEADER = 4 + 8;
+    private static final int RECORD = 4 + 8;
+
+    static final int INSTALL = 1;
+    static final int USE = 2;
+    static final int EXCEPTION = 3;
+
+    private final MappedByteBuffer buffer;
+    private long generation;
+    private int position;
+
+    XJournal(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+        } finally {
+            raf.close(); // mapping stays valid
+        }
+
+        if (this.buffer.getInt(0) == MAGIC)
+            this.generation = this.buffer.getLong(4);
+        else {
+            this.generation = 1;
+            this.buffer.putInt(0, MAGIC);
+            this.buffer.putLong(4, this.generation);
+            this.buffer.force();
+        }
+
+        // Find end of journal
+        this.position = HEADER;
+        while (next(this.position) != null)
+            this.position += RECORD + this.buffer.getInt(this.position);
+
+        Log.i(TAG, "Opened " + file + " generation=" + this.generation + " size=" + this.position);
+    }
+
+    long getGeneration() {
+        return this.generation;
+    }
+
+    boolean isEmpty() {
+        return (this.position == HEADER);
+    }
+
+    // Returns false if the journal is full
+    boolean append(Event event) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeLong(this.generation);
+        event.write(out);
+        out.flush();
+        byte[] payload = bos.toByteArray();
+
+        if (this.position + RECORD + payload.length > SIZE)
+            return false;
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        // Write the payload before the header, so a record is never valid before it is complete
+        this.buffer.position(this.position + RECORD);
+        this.buffer.put(payload);
+        this.buffer.putLong(this.position + 4, crc.getValue());
+        this.buffer.putInt(this.position, payload.length);
+        this.position += RECORD + payload.length;
+        return true;
+    }
+
+    List<Event> read() throws IOException {
+        List<Event> events = new ArrayList<>();
+        int offset = HEADER;
+        byte[] payload;
+        while ((payload = next(offset)) != null) {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            in.readLong(); // generation
+            events.add(Event.read(in));
+            offset += RECORD + payload.length;
+        }
+        return events;
+    }
+
+    // Drop all records by starting a new generation
+    void reset(long generation) {
+        this.generation = generation;
+        this.buffer.putLong(4, generation);
+        this.buffer.force();
+        this.position = HEADER;
+        Log.i(TAG, "Reset generation=" + generation);
+    }
+
+    private byte[] next(int offset) {
+        if (offset + RECORD > SIZE)
+            return null;
+
+        int length = this.buffer.getInt(offset);
+        if (length < 8 || offset + RECORD + length > SIZE)
+            return null;
+
+        byte[] payload = new byte[length];
+        this.buffer.position(offset + RECORD);
+        this.buffer.get(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != this.buffer.getLong(offset + 4))
+            return null;
+
+        if (ByteBuffer.wrap(payload).getLong(0) != this.generation)
+            return null;
+
+        return payload;
+    }
+
+    static class Event {
+        int type;
+        String packageName;
+        int uid;
+        String hook;
+        long time;
+        long first;
+        int count;
+        int restricted;
+        int restrictedCount;
+        String exception;
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeInt(this.type);
+            writeString(out, this.packageName);
+            out.writeInt(this.uid);
+            writeString(out, this.hook);
+            out.writeLong(this.time);
+            out.writeLong(this.first);
+            out.writeInt(this.count);
+            out.writeInt(this.restricted);
+            out.writeInt(this.restrictedCount);
+            out.writeBoolean(this.exception != null);
+            if (this.exception != null)
+                // A stack trace should not fill the journal
+                writeString(out, this.exception.length() > MAX_EXCEPTION
+                        ? this.exception.substring(0, MAX_EXCEPTION) : this.exception);
+        }
+
+        private static Event read(DataInputStream in) throws IOException {
+            Event event = new Event();
+            event.type = in.readInt();
+            event.packageName = readString(in);
+            event.uid = in.readInt();
+            event.hook = readString(in);
+            event.time = in.readLong();
+            event.first = in.readLong();
+            event.count = in.readInt();
+            event.restricted = in.readInt();
+            event.restrictedCount = in.readInt();
+            event.exception = (in.readBoolean() ? readString(in) : null);
+            return event;
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -19,29 +19,28 @@
 
 package eu.faircode.xlua;
 
-import android.util.Log;
-
-import java.util.HashMap;
-import java.util.Map;
-import java.util.WeakHashMap;
-
 import de.robv.android.xposed.XC_MethodHook;
 
 public class XParam {
-    private static final String TAG = "XLua.XParam";
-
     private String packageName;
     private int uid;
     private XC_MethodHook.MethodHookParam param;
 
-    private static final Map<Object, Map<String, Object>> nv = new WeakHashMap<>();
-
     public XParam(String packageName, int uid, XC_MethodHook.MethodHookParam mhparam) {
         this.packageName = packageName;
         this.uid = uid;
         this.param = mhparam;
     }
 
+    XParam(String packageName, int uid) {
+        this(packageName, uid, null);
+    }
+
+    // Reuse for another call
+    void setParam(XC_MethodHook.MethodHookParam mhparam) {
+        this.param = mhparam;
+    }
+
     @SuppressWarnings("unused")
     public String getPackageName() {
         return this.packageName;
@@ -74,28 +73,11 @@ public class XParam {
 
     @SuppressWarnings("unused")
     public void putValue(String name, Object value) {
-        Log.i(TAG, "Put value " + this.packageName + ":" + this.uid + " " + name + "=" + value);
-        synchronized (nv) {
-            if (!nv.containsKey(this.param.thisObject))
-                nv.put(this.param.thisObject, new HashMap<String, Object>());
-            nv.get(this.param.thisObject).put(name, value);
-        }
+        XValues.put(this.param.thisObject, name, value);
     }
 
     @SuppressWarnings("unused")
     public Object getValue(String name) {
-        Object value = getValueInternal(name);
-        Log.i(TAG, "Get value " + this.packageName + ":" + this.uid + " " + name + "=" + value);
-        return value;
-    }
-
-    private Object getValueInternal(String name) {
-        synchronized (nv) {
-            if (!nv.containsKey(this.param.thisObject))
-                return null;
-            if (!nv.get(this.param.thisObject).containsKey(name))
-                return null;
-            return nv.get(this.param.thisObject).get(name);
-        }
+        return XValues.get(this.param.thisObject, name);
     }
 }
@@ -0,0 +1,149 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Condition on a method argument, checked before running a hook
+public class XPredicate implements Parcelable {
+    private int argument;
+    private String type;
+    private String[] values;
+
+    private Set<String> set;
+
+    private XPredicate() {
+    }
+
+    public int getArgument() {
+        return this.argument;
+    }
+
+    public String getType() {
+        return this.type;
+    }
+
+    public String[] getValues() {
+        return this.values;
+    }
+
+    boolean matches(Object[] args) {
+        if (args == null || this.argument >= args.length)
+            return false;
+
+        Object arg = args[this.argument];
+        switch (this.type) {
+            case "authority":
+                return (arg instanceof Uri && this.set.contains(((Uri) arg).getAuthority()));
+            case "equals":
+                return (arg instanceof String && this.set.contains(arg));
+            case "bundle_key":
+                if (arg instanceof Bundle)
+                    for (String key : this.values)
+                        if (((Bundle) arg).containsKey(key))
+                            return true;
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    public static final Parcelable.Creator<XPredicate> CREATOR = new Parcelable.Creator<XPredicate>() {
+        public XPredicate createFromParcel(Parcel in) {
+            return new XPredicate(in);
+        }
+
+        public XPredicate[] newArray(int size) {
+            return new XPredicate[size];
+        }
+    };
+
+    private XPredicate(Parcel in) {
+        readFromParcel(in);
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(this.argument);
+        out.writeString(this.type);
+        out.writeStringArray(this.values);
+    }
+
+    private void readFromParcel(Parcel in) {
+        this.argument = in.readInt();
+        this.type = in.readString();
+        this.values = in.createStringArray();
+        this.set = new HashSet<>(Arrays.asList(this.values));
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    public JSONObject toJSONObject() throws JSONException {
+        JSONObject jroot = new JSONObject();
+
+        jroot.put("argument", this.argument);
+        jroot.put("type", this.type);
+
+        JSONArray jvalues = new JSONArray();
+        for (int i = 0; i < this.values.length; i++)
+            jvalues.put(this.values[i]);
+        jroot.put("values", jvalues);
+
+        return jroot;
+    }
+
+    public static XPredicate fromJSONObject(JSONObject jroot) throws JSONException {
+        XPredicate predicate = new XPredicate();
+
+        predicate.argument = jroot.getInt("argument");
+        predicate.type = jroot.getString("type");
+        if (!"authority".equals(predicate.type) &&
+                !"equals".equals(predicate.type) &&
+                !"bundle_key".equals(predicate.type))
+            throw new JSONException("Unknown predicate type " + predicate.type);
+
+        JSONArray jvalues = jroot.getJSONArray("values");
+        predicate.values = new String[jvalues.length()];
+        for (int i = 0; i < jvalues.length(); i++)
+            predicate.values[i] = jvalues.getString(i);
+        predicate.set = new HashSet<>(Arrays.asList(predicate.values));
+
+        return predicate;
+    }
+
+    @Override
+    public String toString() {
+        return this.type + "@" + this.argument + "=" + Arrays.toString(this.values);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Collects hook events in the app process and sends them in batches from a background thread
+// Android kills app processes without running shutdown hooks,
+// so events are flushed when the app is hidden or trimmed and otherwise after a short delay,
+// which bounds the events lost with a killed process to those of the last second
+// The thread is started with the first event, so apps without events pay nothing
+class XReporter {
+    private static final String TAG = "XLua.Reporter";
+
+    private static final long FLUSH_DELAY = 1000L; // milliseconds
+
+    private final Context context;
+    private final String packageName;
+    private final int uid;
+
+    private Handler handler = null;
+    private final Map<String, Bundle> pending = new LinkedHashMap<>();
+    private final List<Usage> usages = new CopyOnWriteArrayList<>();
+    private boolean scheduled = false;
+
+    XReporter(Context context, String packageName, int uid) {
+        this.context = context;
+        this.packageName = packageName;
+        this.uid = uid;
+    }
+
+    // Should be called holding the pending lock
+    private Handler getHandler() {
+        if (handler != null)
+            return handler;
+
+        HandlerThread thread = new HandlerThread("XLua.Reporter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Includes losing the foreground
+                if (level >= TRIM_MEMORY_UI_HIDDEN)
+                    handler.post(flusher);
+            }
+
+            @Override
+            public void onLowMemory() {
+                handler.post(flusher);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration configuration) {
+            }
+        });
+
+        return handler;
+    }
+
+    // Get usage counters for a hook phase, to be called when installing the hook
+    Usage getUsage(String hook, String function) {
+        Usage usage = new Usage(hook, function);
+        usages.add(usage);
+        return usage;
+    }
+
+    void report(String hook, String event, Bundle data) {
+        long time = System.currentTimeMillis();
+        boolean restricted = (data.getInt("restricted", 0) == 1);
+        String key = hook + "/" + event + "/" + data.getString("function");
+
+        synchronized (pending) {
+            // Merge repeated events
+            Bundle args = pending.get(key);
+            if (args == null) {
+                args = new Bundle();
+                args.putString("hook", hook);
+                args.putString("event", event);
+                pending.put(key, args);
+            }
+
+            // Carry the counters, other data is of the latest event
+            Bundle previous = args.getBundle("data");
+            Bundle merged = new Bundle(data);
+            merged.putLong("first", previous == null ? time : previous.getLong("first"));
+            merged.putLong("time", time);
+            merged.putInt("count", (previous == null ? 0 : previous.getInt("count")) + 1);
+            merged.putInt("restricted_count",
+                    (previous == null ? 0 : previous.getInt("restricted_count")) + (restricted ? 1 : 0));
+
+            // The latest exception, if the latest event has one
+            if (data.getString("exception") == null)
+                merged.remove("exception");
+            else
+                merged.putString("exception", data.getString("exception"));
+            args.putBundle("data", merged);
+
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        synchronized (pending) {
+            if (!scheduled) {
+                scheduled = true;
+                getHandler().postDelayed(flusher, FLUSH_DELAY);
+            }
+        }
+    }
+
+    private final Runnable flusher = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    void flush() {
+        ArrayList<Bundle> reports = new ArrayList<>();
+        synchronized (pending) {
+            if (handler != null)
+                handler.removeCallbacks(flusher);
+            scheduled = false;
+            reports.addAll(pending.values());
+            pending.clear();
+        }
+
+        for (Usage usage : usages) {
+            Bundle args = usage.drain();
+            if (args != null)
+                reports.add(args);
+        }
+
+        if (reports.size() == 0)
+            return;
+
+        try {
+            Bundle args = new Bundle();
+            args.putString("packageName", packageName);
+            args.putInt("uid", uid);
+            args.putParcelableArrayList("reports", reports);
+            context.getContentResolver()
+                    .call(XSettings.URI, "xlua", "report", args);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+    }
+
+    // Counts uses of one hook phase without allocating memory
+    class Usage {
+        private final String hook;
+        private final String function;
+
+        private long first = -1;
+        private long time;
+        private int count = 0;
+        private int restrictedCount = 0;
+        private boolean restricted;
+        private long total = 0; // nanoseconds
+        private final int[] histogram = new int[XStats.BUCKETS];
+
+        private Usage(String hook, String function) {
+            this.hook = hook;
+            this.function = function;
+        }
+
+        void used(boolean restricted, long nanos) {
+            long now = System.currentTimeMillis();
+            boolean schedule;
+            synchronized (this) {
+                if (this.count == 0)
+                    this.first = now;
+                this.time = now;
+                this.count++;
+                if (restricted)
+                    this.restrictedCount++;
+                this.restricted = restricted;
+                this.total += nanos;
+                this.histogram[XStats.getBucket(nanos)]++;
+                schedule = (this.count == 1);
+            }
+            if (schedule)
+                schedule();
+        }
+
+        private synchronized Bundle drain() {
+            if (this.count == 0)
+                return null;
+
+            Bundle data = new Bundle();
+            data.putString("function", this.function);
+            data.putInt("restricted", this.restricted ? 1 : 0);
+            data.putLong("first", this.first);
+            data.putLong("time", this.time);
+            data.putInt("count", this.count);
+            data.putInt("restricted_count", this.restrictedCount);
+            data.putLong("total", this.total);
+            data.putIntArray("histogram", this.histogram.clone());
+            this.count = 0;
+            this.restrictedCount = 0;
+            this.total = 0;
+            Arrays.fill(this.histogram, 0);
+
+            Bundle args = new Bundle();
+            args.putString("hook", this.hook);
+            args.putString("event", "use");
+            args.putBundle("data", data);
+            return args;
+        }
+    }
+}
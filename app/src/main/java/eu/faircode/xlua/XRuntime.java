@@ -0,0 +1,120 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.util.Log;
+
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.Lua;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.lib.OneArgFunction;
+import org.luaj.vm2.lib.jse.CoerceJavaToLua;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+// Initialized Lua runtime of one hook script
+// Lua globals are not thread safe, so there should be one runtime per thread
+class XRuntime {
+    private static final String TAG = "XLua.Runtime";
+
+    private final String packageName;
+    private final int uid;
+
+    private final LuaValue before;
+    private final LuaValue after;
+
+    // Arguments reused for every call
+    private final LuaValue hook;
+    private final XParam param;
+    private final LuaValue luaParam;
+    private boolean busy = false;
+
+    XRuntime(XHook hook, Prototype script, final String packageName, final int uid) {
+        this.packageName = packageName;
+        this.uid = uid;
+
+        Globals globals = JsePlatform.standardGlobals();
+
+        globals.set("log", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg) {
+                Log.i(TAG, packageName + ":" + uid + " " + arg.checkjstring());
+                return LuaValue.NIL;
+            }
+        });
+
+        // Define functions
+        LuaClosure closure = new LuaClosure(script, globals);
+        closure.call();
+
+        this.before = globals.get("before");
+        this.after = globals.get("after");
+
+        this.hook = CoerceJavaToLua.coerce(hook);
+        this.param = new XParam(packageName, uid);
+        this.luaParam = CoerceJavaToLua.coerce(this.param);
+    }
+
+    // Check if the main chunk of a script assigns a global function by inspecting its bytecode
+    static boolean defines(Prototype script, String function) {
+        for (int i = 0; i < script.code.length; i++) {
+            int instruction = script.code[i];
+            if (Lua.GET_OPCODE(instruction) == Lua.OP_SETTABUP) {
+                int b = Lua.GETARG_B(instruction);
+                if (Lua.ISK(b) && function.equals(script.k[Lua.INDEXK(b)].tojstring()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    LuaValue getFunction(String function) {
+        if ("before".equals(function))
+            return this.before;
+        else if ("after".equals(function))
+            return this.after;
+        else
+            return LuaValue.NIL;
+    }
+
+    // Returns if the call was restricted
+    // Allocates nothing itself, luaj allocates the value stack of every call frame
+    boolean call(String function, XC_MethodHook.MethodHookParam mhparam) {
+        LuaValue func = getFunction(function);
+
+        // The script can call a hooked method itself
+        if (this.busy) {
+            LuaValue nested = CoerceJavaToLua.coerce(new XParam(this.packageName, this.uid, mhparam));
+            return func.call(this.hook, nested).checkboolean();
+        }
+
+        this.busy = true;
+        this.param.setParam(mhparam);
+        try {
+            return func.call(this.hook, this.luaParam).checkboolean();
+        } finally {
+            this.param.setParam(null);
+            this.busy = false;
+        }
+    }
+}
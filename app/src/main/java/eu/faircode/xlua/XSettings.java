@@ -30,25 +30,49 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
 import android.os.Parcelable;
 import android.os.Process;
+import android.os.RemoteException;
 import android.os.StrictMode;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.util.Log;
 
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.DumpState;
+import org.luaj.vm2.compiler.LuaC;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.lang.reflect.Method;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.robv.android.xposed.XposedBridge;
@@ -59,13 +83,52 @@ class XSettings {
     private final static Object lock = new Object();
 
     private static int version = -1;
-    private static Map<String, XHook> hooks = null;
+    private static volatile Snapshot snapshot = null;
+    private static final Map<String, Script> scripts = new HashMap<>();
+    private static final Map<String, XStats> stats = new HashMap<>();
+    private static final Map<String, Resolution> resolutions = new ConcurrentHashMap<>(); // written holding the database write lock
+    private static final Map<String, Set<String>> assignments = new ConcurrentHashMap<>(); // package:uid
+    private static final Map<String, Pages> pages = new HashMap<>();
+    private static final Map<Integer, Map<String, XApp>> inventory = new HashMap<>();
+    private static final Map<String, Label> labels = new HashMap<>();
+    private static String inventoryLocale = null;
+    private static final Map<Integer, Map<String, String>> settings = new HashMap<>();
+
+    // Client side
+    private static final Map<Integer, Map<String, String>> cache = new HashMap<>();
+    private static long cacheGeneration = 0;
+    private static ContentObserver observer = null;
     private static SQLiteDatabase db = null;
-    private static ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock(true);
+    private static ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();
+
+    private static final Object journalLock = new Object();
+    private static XJournal journal = null;
+    private static boolean compactScheduled = false;
+    private static volatile boolean journalPending = false; // journal has events not folded yet
+
+    private static Handler handler = null;
+    private static final Map<Integer, Set<String>> changed = new HashMap<>(); // user, package:uid
+
+    // Change sequence, the epoch identifies the sequence across restarts of the settings process
+    private static final String epoch = UUID.randomUUID().toString();
+    private static long sequence = 0;
+    private static long resetSequence = 0; // clients behind need to reload all
+    private static final Map<String, Long> sequences = new HashMap<>(); // package:uid
+
+    private static final Map<IBinder, Subscriber> subscribers = new HashMap<>();
+    private static Messenger acknowledger = null;
+
+    private final static int PAGE_SIZE = 50; // apps
+    private final static long PAGE_TIMEOUT = 60 * 1000L; // milliseconds
+    private final static long COMPACT_DELAY = 10 * 1000L; // milliseconds
+    private final static long NOTIFY_DELAY = 500L; // milliseconds
+    private final static long ACK_TIMEOUT = 30 * 1000L; // milliseconds
+    private final static int USER_ALL = -1; // UserHandle.USER_ALL
 
     final static String cChannelName = "xlua";
 
     static Uri URI = Uri.parse("content://settings/system");
+    static Uri URI_SETTINGS = Uri.parse("content://settings/xlua");
     static String ACTION_DATA_CHANGED = XSettings.class.getPackage().getName() + ".DATA_CHANGED";
 
     static Bundle call(Context context, String arg, Bundle extras) throws Throwable {
@@ -74,8 +137,8 @@ class XSettings {
         synchronized (lock) {
             if (version < 0)
                 version = getVersion(context);
-            if (hooks == null)
-                hooks = getHooks(context);
+            if (snapshot == null)
+                snapshot = new Snapshot(1, getHooks(context));
             if (db == null)
                 db = getDatabase();
         }
@@ -93,14 +156,26 @@ class XSettings {
                     return getHooks(context, extras);
                 case "getApps":
                     return getApps(context, extras);
+                case "getAppsChangedSince":
+                    return getAppsChangedSince(context, extras);
+                case "subscribe":
+                    return subscribe(context, extras);
+                case "unsubscribe":
+                    return unsubscribe(context, extras);
+                case "packageChanged":
+                    return packageChanged(context, extras);
                 case "assignHooks":
                     return assignHooks(context, extras);
                 case "getAssignedHooks":
                     return getAssignedHooks(context, extras);
                 case "report":
                     return report(context, extras);
+                case "getStats":
+                    return getStats(context, extras);
                 case "getSetting":
                     return getSetting(context, extras);
+                case "getSettings":
+                    return getSettings(context, extras);
                 case "putSetting":
                     return putSetting(context, extras);
                 case "clearData":
@@ -124,14 +199,32 @@ class XSettings {
 
         extras.setClassLoader(XSettings.class.getClassLoader());
         ArrayList<XHook> put = extras.getParcelableArrayList("hooks");
+        compileHooks(put);
+
+        Map<String, XHook> map = new HashMap<>();
+        for (XHook hook : put) {
+            fixClassName(context, hook);
+            map.put(hook.getId(), hook);
+        }
 
+        Snapshot current;
         synchronized (lock) {
-            hooks.clear();
-            for (XHook hook : put)
-                hooks.put(hook.getId(), hook);
+            current = new Snapshot(snapshot.version + 1, map);
+            snapshot = current;
         }
 
-        Log.i(TAG, "Set hooks=" + hooks.size());
+        // Hook definitions might have changed
+        dbLock.writeLock().lock();
+        try {
+            db.delete("resolution", null, null);
+            resolutions.clear();
+        } finally {
+            dbLock.writeLock().unlock();
+        }
+
+        resetSequence(context);
+
+        Log.i(TAG, "Set hooks=" + current.hooks.size() + " version=" + current.version);
 
         return new Bundle();
     }
@@ -139,161 +232,587 @@ class XSettings {
     private static Bundle getHooks(Context context, Bundle extras) throws Throwable {
         Bundle result = new Bundle();
 
-        synchronized (lock) {
-            result.putParcelableArrayList("hooks", new ArrayList<Parcelable>(hooks.values()));
-        }
+        result.putParcelableArrayList("hooks", new ArrayList<Parcelable>(snapshot.hooks.values()));
 
         return result;
     }
 
     private static Bundle getApps(Context context, Bundle extras) throws Throwable {
-        Map<String, XApp> apps = new HashMap<>();
+        int cuid = Binder.getCallingUid();
+        String token = extras.getString("token");
+        int limit = extras.getInt("limit", PAGE_SIZE);
+
+        purgePages();
+
+        // Get next page of a previous call or start a new list
+        Pages remaining;
+        if (token == null) {
+            token = UUID.randomUUID().toString();
+            long seq = getSequence(); // before listing, so no change is missed
+            remaining = new Pages(cuid, seq, getApps(context, cuid, null));
+        } else
+            synchronized (pages) {
+                remaining = pages.remove(token);
+                if (remaining == null)
+                    throw new IllegalArgumentException("Unknown token " + token);
+                if (remaining.uid != cuid)
+                    throw new SecurityException();
+            }
+
+        Bundle result = new Bundle();
+        result.putString("epoch", epoch);
+        result.putLong("sequence", remaining.sequence);
+        result.putParcelableArrayList("apps", remaining.next(limit));
+        if (remaining.hasNext()) {
+            synchronized (pages) {
+                pages.put(token, remaining);
+            }
+            result.putString("next", token);
 
+            // Drop the list if the client abandons it
+            getHandler().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    purgePages();
+                }
+            }, PAGE_TIMEOUT + 1000L);
+        }
+        return result;
+    }
+
+    private static void purgePages() {
+        synchronized (pages) {
+            long now = new Date().getTime();
+            for (String key : new ArrayList<>(pages.keySet()))
+                if (pages.get(key).time + PAGE_TIMEOUT < now) {
+                    Log.i(TAG, "Dropping listing uid=" + pages.get(key).uid);
+                    pages.remove(key);
+                }
+        }
+    }
+
+    private static Bundle getAppsChangedSince(Context context, Bundle extras) throws Throwable {
         int cuid = Binder.getCallingUid();
         int userid = Util.getUserId(cuid);
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+        long since = extras.getLong("sequence");
 
-        // Access package manager as system user
-        long ident = Binder.clearCallingIdentity();
-        try {
-            // Get installed apps for current user
-            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
-            for (ApplicationInfo ai : pm.getInstalledApplications(0))
-                if (!"android".equals(ai.packageName)) {
-                    int esetting = pm.getApplicationEnabledSetting(ai.packageName);
-                    boolean enabled = (ai.enabled &&
-                            (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
-                                    esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
-                    boolean persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
-                            "android".equals(ai.packageName));
-
-                    XApp app = new XApp();
-                    app.uid = ai.uid;
-                    app.packageName = ai.packageName;
-                    app.icon = ai.icon;
-                    app.label = (String) pm.getApplicationLabel(ai);
-                    app.enabled = enabled;
-                    app.persistent = persistent;
-                    app.assignments = new ArrayList<>();
-                    apps.put(app.packageName + ":" + app.uid, app);
+        Bundle result = new Bundle();
+        result.putString("epoch", epoch);
+
+        // Changed apps of the current user
+        Set<String> keys = new HashSet<>();
+        synchronized (sequences) {
+            result.putLong("sequence", sequence);
+            if (!epoch.equals(extras.getString("epoch")) || since < resetSequence) {
+                result.putBoolean("reset", true);
+                return result;
+            }
+            for (String key : sequences.keySet())
+                if (sequences.get(key) > since) {
+                    int uid = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+                    if (uid >= start && uid <= end)
+                        keys.add(key);
                 }
-        } finally {
-            Binder.restoreCallingIdentity(ident);
         }
 
-        Log.i(TAG, "Installed apps=" + apps.size() + " cuid=" + cuid);
+        Log.i(TAG, "Changed since=" + since + " apps=" + keys.size());
+        putChanges(context, cuid, keys, result);
+        return result;
+    }
 
-        // Get assigned hooks
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
+    // Put changed apps, removed apps and their stats
+    private static void putChanges(Context context, int cuid, Set<String> keys, Bundle result) throws Throwable {
+        ArrayList<XApp> apps = (keys.size() == 0 ? new ArrayList<XApp>() : getApps(context, cuid, keys));
+
+        // Changed apps no longer installed
+        ArrayList<String> removed = new ArrayList<>(keys);
+        for (XApp app : apps)
+            removed.remove(app.packageName + ":" + app.uid);
+
+        ArrayList<XStats> changedStats = new ArrayList<>();
+        synchronized (stats) {
+            for (XStats s : stats.values())
+                if (keys.contains(s.packageName + ":" + s.uid)) {
+                    XStats copy = new XStats(s.packageName, s.uid, s.hook);
+                    copy.add(s);
+                    changedStats.add(copy);
+                }
+        }
+
+        result.putParcelableArrayList("apps", apps);
+        result.putStringArrayList("removed", removed);
+        result.putParcelableArrayList("stats", changedStats);
+    }
+
+    private static Bundle subscribe(final Context context, Bundle extras) throws Throwable {
+        int cuid = Binder.getCallingUid();
+        int userid = Util.getUserId(cuid);
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+        IBinder binder = extras.getBinder("listener");
+        long since = extras.getLong("sequence");
+
+        Bundle result = new Bundle();
+        synchronized (subscribers) {
+            Subscriber subscriber = subscribers.get(binder);
+            if (subscriber == null) {
+                subscriber = new Subscriber(binder, cuid);
+                binder.linkToDeath(subscriber, 0);
+                subscribers.put(binder, subscriber);
+            }
+
+            // Changes since the state of the subscriber
+            synchronized (sequences) {
+                if (!epoch.equals(extras.getString("epoch")) || since < resetSequence)
+                    subscriber.reset = true;
+                else
+                    for (String key : sequences.keySet())
+                        if (sequences.get(key) > since) {
+                            int uid = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+                            if (uid >= start && uid <= end)
+                                subscriber.pending.add(key);
+                        }
+            }
+
+            Log.i(TAG, "Subscribed cuid=" + cuid + " since=" + since +
+                    " pending=" + subscriber.pending.size() + " subscribers=" + subscribers.size());
+        }
+
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                pushChanges(context);
+            }
+        });
+
+        result.putBoolean("subscribed", true);
+        return result;
+    }
+
+    private static Bundle unsubscribe(Context context, Bundle extras) throws Throwable {
+        IBinder binder = extras.getBinder("listener");
+        synchronized (subscribers) {
+            Subscriber subscriber = subscribers.get(binder);
+            if (subscriber != null && subscriber.uid == Binder.getCallingUid())
+                removeSubscriber(subscriber);
+            Log.i(TAG, "Unsubscribed subscribers=" + subscribers.size());
+        }
+        return new Bundle();
+    }
+
+    // Send pending changes to subscribers, at most one unacknowledged message each
+    // Should be called on the handler thread only
+    private static void pushChanges(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        List<Subscriber> ready = new ArrayList<>();
+        List<Subscriber> dropped = new ArrayList<>();
+        synchronized (subscribers) {
+            for (Subscriber subscriber : new ArrayList<>(subscribers.values()))
+                if (subscriber.sent > 0) {
+                    // Subscriber fell behind, it will catch up when subscribing again
+                    if (subscriber.sent + ACK_TIMEOUT < now) {
+                        Log.w(TAG, "Dropping subscriber uid=" + subscriber.uid + " pending=" + subscriber.pending.size());
+                        removeSubscriber(subscriber);
+                        dropped.add(subscriber);
+                    }
+                } else if (subscriber.reset || subscriber.pending.size() > 0)
+                    ready.add(subscriber);
+        }
+
+        // Tell dropped subscribers to subscribe again, this message is not acknowledged
+        for (Subscriber subscriber : dropped)
             try {
-                Cursor cursor = null;
-                try {
-                    int start = Util.getUserUid(userid, 0);
-                    int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
-                    cursor = db.query(
-                            "assignment",
-                            new String[]{"package", "uid", "hook", "installed", "used", "restricted", "exception"},
-                            "uid >= ? AND uid <= ?",
-                            new String[]{Integer.toString(start), Integer.toString(end)},
-                            null, null, null);
-                    int colPkg = cursor.getColumnIndex("package");
-                    int colUid = cursor.getColumnIndex("uid");
-                    int colHook = cursor.getColumnIndex("hook");
-                    int colInstalled = cursor.getColumnIndex("installed");
-                    int colUsed = cursor.getColumnIndex("used");
-                    int colRestricted = cursor.getColumnIndex("restricted");
-                    int colException = cursor.getColumnIndex("exception");
-                    while (cursor.moveToNext()) {
-                        String pkg = cursor.getString(colPkg);
-                        int uid = cursor.getInt(colUid);
-                        String hookid = cursor.getString(colHook);
-                        if (apps.containsKey(pkg + ":" + uid)) {
-                            XApp app = apps.get(pkg + ":" + uid);
-                            synchronized (lock) {
-                                if (hooks.containsKey(hookid)) {
-                                    XAssignment assignment = new XAssignment(hooks.get(hookid));
-                                    assignment.installed = cursor.getLong(colInstalled);
-                                    assignment.used = cursor.getLong(colUsed);
-                                    assignment.restricted = (cursor.getInt(colRestricted) == 1);
-                                    assignment.exception = cursor.getString(colException);
-                                    app.assignments.add(assignment);
-                                } else
-                                    Log.w(TAG, "Hook " + hookid + " not found");
+                Bundle data = new Bundle();
+                data.putString("epoch", epoch);
+                data.putBoolean("dropped", true);
+                Message msg = Message.obtain();
+                msg.setData(data);
+                subscriber.messenger.send(msg);
+            } catch (RemoteException ex) {
+                Log.w(TAG, "Subscriber gone uid=" + subscriber.uid);
+            }
+
+        for (Subscriber subscriber : ready) {
+            Set<String> keys;
+            boolean reset;
+            synchronized (subscribers) {
+                keys = new HashSet<>(subscriber.pending);
+                reset = subscriber.reset;
+                subscriber.pending.clear();
+                subscriber.reset = false;
+                subscriber.sent = now;
+            }
+
+            try {
+                Bundle data = new Bundle();
+                data.putString("epoch", epoch);
+                if (reset)
+                    data.putBoolean("reset", true);
+                else {
+                    data.putLong("sequence", getSequence()); // before reading changes
+                    putChanges(context, subscriber.uid, keys, data);
+                }
+
+                Message msg = Message.obtain();
+                msg.setData(data);
+                msg.replyTo = getAcknowledger(context);
+                subscriber.messenger.send(msg);
+                Log.i(TAG, "Pushed uid=" + subscriber.uid + " apps=" + keys.size() + " reset=" + reset);
+            } catch (RemoteException ex) {
+                Log.w(TAG, "Subscriber gone uid=" + subscriber.uid);
+                synchronized (subscribers) {
+                    removeSubscriber(subscriber);
+                }
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+                synchronized (subscribers) {
+                    subscriber.pending.addAll(keys);
+                    subscriber.sent = 0;
+                }
+            }
+        }
+    }
+
+    // Should be called holding the subscribers lock
+    private static void removeSubscriber(Subscriber subscriber) {
+        if (subscribers.get(subscriber.binder) == subscriber) {
+            subscribers.remove(subscriber.binder);
+            subscriber.binder.unlinkToDeath(subscriber, 0);
+        }
+    }
+
+    // Receives acknowledgements of pushed changes
+    private static Messenger getAcknowledger(final Context context) {
+        synchronized (subscribers) {
+            if (acknowledger == null)
+                acknowledger = new Messenger(new Handler(getHandler().getLooper(), new Handler.Callback() {
+                    @Override
+                    public boolean handleMessage(Message msg) {
+                        if (msg.replyTo != null)
+                            synchronized (subscribers) {
+                                Subscriber subscriber = subscribers.get(msg.replyTo.getBinder());
+                                if (subscriber != null)
+                                    subscriber.sent = 0;
                             }
-                        } else
-                            Log.i(TAG, "Package " + pkg + ":" + uid + " not found");
+                        pushChanges(context);
+                        return true;
                     }
+                }));
+            return acknowledger;
+        }
+    }
+
+    // Apps of the user of the calling uid, optionally only the apps with the given package:uid keys
+    private static ArrayList<XApp> getApps(Context context, int cuid, Set<String> only) throws Throwable {
+        Map<String, XApp> apps = new HashMap<>();
+
+        // Show current usage data
+        compactJournal();
+
+        int userid = Util.getUserId(cuid);
+
+        // Get installed apps for current user
+        synchronized (inventory) {
+            for (XApp installed : getInventory(context, userid).values()) {
+                if (only != null && !only.contains(installed.packageName + ":" + installed.uid))
+                    continue;
+                XApp app = new XApp();
+                app.uid = installed.uid;
+                app.packageName = installed.packageName;
+                app.icon = installed.icon;
+                app.label = installed.label;
+                app.enabled = installed.enabled;
+                app.persistent = installed.persistent;
+                app.assignments = new ArrayList<>();
+                apps.put(app.packageName + ":" + app.uid, app);
+            }
+        }
+
+        Log.i(TAG, "Listed apps=" + apps.size() + " cuid=" + cuid);
+
+        // Get assigned hooks
+        Map<String, XHook> hooks = snapshot.hooks;
+        Cursor cursor = null;
+        try {
+            String selection;
+            List<String> args = new ArrayList<>();
+            if (only == null) {
+                selection = "uid >= ? AND uid <= ?";
+                args.add(Integer.toString(Util.getUserUid(userid, 0)));
+                args.add(Integer.toString(Util.getUserUid(userid, Process.LAST_APPLICATION_UID)));
+            } else {
+                // Use the uid index
+                Set<String> uids = new HashSet<>();
+                for (XApp app : apps.values())
+                    uids.add(Integer.toString(app.uid));
+                selection = "uid IN (" + TextUtils.join(",", Collections.nCopies(uids.size(), "?")) + ")";
+                args.addAll(uids);
+            }
+            cursor = db.query(
+                    "assignment",
+                    new String[]{"package", "uid", "hook", "installed", "used", "restricted", "exception",
+                            "first_used", "used_count", "restricted_count"},
+                    selection,
+                    args.toArray(new String[0]),
+                    null, null, null);
+            int colPkg = cursor.getColumnIndex("package");
+            int colUid = cursor.getColumnIndex("uid");
+            int colHook = cursor.getColumnIndex("hook");
+            int colInstalled = cursor.getColumnIndex("installed");
+            int colUsed = cursor.getColumnIndex("used");
+            int colRestricted = cursor.getColumnIndex("restricted");
+            int colException = cursor.getColumnIndex("exception");
+            int colFirstUsed = cursor.getColumnIndex("first_used");
+            int colUsedCount = cursor.getColumnIndex("used_count");
+            int colRestrictedCount = cursor.getColumnIndex("restricted_count");
+            while (cursor.moveToNext()) {
+                String pkg = cursor.getString(colPkg);
+                int uid = cursor.getInt(colUid);
+                String hookid = cursor.getString(colHook);
+                if (apps.containsKey(pkg + ":" + uid)) {
+                    XApp app = apps.get(pkg + ":" + uid);
+                    XHook hook = hooks.get(hookid);
+                    if (hook != null) {
+                        XAssignment assignment = new XAssignment(hook);
+                        assignment.installed = cursor.getLong(colInstalled);
+                        assignment.used = cursor.getLong(colUsed);
+                        assignment.restricted = (cursor.getInt(colRestricted) == 1);
+                        assignment.exception = cursor.getString(colException);
+                        assignment.firstUsed = cursor.getLong(colFirstUsed);
+                        assignment.usedCount = cursor.getLong(colUsedCount);
+                        assignment.restrictedCount = cursor.getLong(colRestrictedCount);
+                        app.assignments.add(assignment);
+                    } else
+                        Log.w(TAG, "Hook " + hookid + " not found");
+                } else if (only == null)
+                    Log.i(TAG, "Package " + pkg + ":" + uid + " not found");
+            }
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        return new ArrayList<>(apps.values());
+    }
+
+    private static Bundle packageChanged(Context context, Bundle extras) throws Throwable {
+        enforcePermission(context);
+
+        String packageName = extras.getString("packageName");
+        int uid = extras.getInt("uid");
+        boolean removed = extras.getBoolean("removed");
+        int userid = Util.getUserId(uid);
+
+        synchronized (inventory) {
+            // Inventory will be built when needed
+            Map<String, XApp> apps = inventory.get(userid);
+            if (apps == null) {
+                notifyDataChanged(context, packageName, uid);
+                return new Bundle();
+            }
+
+            PackageInfo pi = null;
+            if (!removed) {
+                // Access package manager as system user
+                long ident = Binder.clearCallingIdentity();
+                try {
+                    PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+                    pi = pm.getPackageInfo(packageName, 0);
+                    XApp app = getApp(pm, pi, userid);
+                    if (app != null)
+                        apps.put(packageName, app);
+                } catch (PackageManager.NameNotFoundException ignored) {
                 } finally {
-                    if (cursor != null)
-                        cursor.close();
+                    Binder.restoreCallingIdentity(ident);
                 }
+            }
 
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            if (pi == null) {
+                apps.remove(packageName);
+                synchronized (labels) {
+                    labels.remove(packageName + ":" + userid);
+                }
+            }
+
+            Log.i(TAG, "Package changed " + packageName + ":" + uid + " removed=" + removed +
+                    " installed=" + (pi != null) + " apps=" + apps.size());
+        }
+
+        notifyDataChanged(context, packageName, uid);
+
+        return new Bundle();
+    }
+
+    // Installed apps of a user by package name
+    // Should be called holding the inventory monitor
+    private static Map<String, XApp> getInventory(Context context, int userid) throws Throwable {
+        // Labels of the inventory depend on the locale
+        String locale = getLocale();
+        if (!locale.equals(inventoryLocale)) {
+            if (inventoryLocale != null)
+                Log.i(TAG, "Locale changed to " + locale);
+            inventory.clear();
+            inventoryLocale = locale;
+        }
+
+        Map<String, XApp> apps = inventory.get(userid);
+        if (apps != null)
+            return apps;
+
+        apps = new HashMap<>();
+
+        // Access package manager as system user
+        long ident = Binder.clearCallingIdentity();
+        try {
+            PackageManager pm = Util.createContextForUser(context, userid).getPackageManager();
+            for (PackageInfo pi : pm.getInstalledPackages(0)) {
+                XApp app = getApp(pm, pi, userid);
+                if (app != null)
+                    apps.put(app.packageName, app);
             }
         } finally {
-            dbLock.readLock().unlock();
+            Binder.restoreCallingIdentity(ident);
         }
 
-        Bundle result = new Bundle();
-        result.putParcelableArrayList("apps", new ArrayList(apps.values()));
-        return result;
+        inventory.put(userid, apps);
+        Log.i(TAG, "Installed apps=" + apps.size() + " user=" + userid);
+        return apps;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String getLocale() {
+        return Resources.getSystem().getConfiguration().locale.toString();
+    }
+
+    private static XApp getApp(PackageManager pm, PackageInfo pi, int userid) {
+        ApplicationInfo ai = pi.applicationInfo;
+        if (ai == null || "android".equals(ai.packageName))
+            return null;
+
+        int esetting = pm.getApplicationEnabledSetting(ai.packageName);
+        boolean enabled = (ai.enabled &&
+                (esetting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT ||
+                        esetting == PackageManager.COMPONENT_ENABLED_STATE_ENABLED));
+        boolean persistent = ((ai.flags & ApplicationInfo.FLAG_PERSISTENT) != 0 ||
+                "android".equals(ai.packageName));
+
+        // Loading a label reads the resources of the app
+        String label;
+        String key = ai.packageName + ":" + userid;
+        synchronized (labels) {
+            String locale = getLocale();
+            Label cached = labels.get(key);
+            if (cached == null || cached.versionCode != pi.versionCode || !locale.equals(cached.locale)) {
+                cached = new Label();
+                cached.versionCode = pi.versionCode;
+                cached.locale = locale;
+                cached.label = pm.getApplicationLabel(ai).toString();
+                labels.put(key, cached);
+            }
+            label = cached.label;
+        }
+
+        XApp app = new XApp();
+        app.uid = ai.uid;
+        app.packageName = ai.packageName;
+        app.icon = ai.icon;
+        app.label = label;
+        app.enabled = enabled;
+        app.persistent = persistent;
+        return app;
     }
 
     private static Bundle assignHooks(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
-        List<String> hookids = extras.getStringArrayList("hooks");
-        String packageName = extras.getString("packageName");
-        int uid = extras.getInt("uid");
-        boolean delete = extras.getBoolean("delete");
-        boolean kill = extras.getBoolean("kill");
+        // Single app or list of apps
+        List<Bundle> changes = extras.getParcelableArrayList("assignments");
+        if (changes == null) {
+            changes = new ArrayList<>();
+            changes.add(extras);
+        }
+
+        // Journaled events should not apply to new assignments
+        compactJournal();
 
+        Set<String> kill = new LinkedHashSet<>();
         dbLock.writeLock().lock();
         try {
             db.beginTransaction();
+            SQLiteStatement stmtDelete = null;
+            SQLiteStatement stmtInsert = null;
             try {
-                for (String hookid : hookids)
-                    if (delete) {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " deleted");
-                        long rows = db.delete("assignment",
-                                "hook = ? AND package = ? AND uid = ?",
-                                new String[]{hookid, packageName, Integer.toString(uid)});
-                        if (rows < 0)
-                            throw new Throwable("Error deleting assignment");
-                    } else {
-                        Log.i(TAG, packageName + ":" + uid + "/" + hookid + " added");
-                        ContentValues cv = new ContentValues();
-                        cv.put("package", packageName);
-                        cv.put("uid", uid);
-                        cv.put("hook", hookid);
-                        cv.put("installed", -1);
-                        cv.put("used", -1);
-                        cv.put("restricted", 0);
-                        cv.putNull("exception");
-                        long rows = db.insertWithOnConflict("assignment", null, cv, SQLiteDatabase.CONFLICT_REPLACE);
-                        if (rows < 0)
+                stmtDelete = db.compileStatement(
+                        "DELETE FROM assignment WHERE package = ? AND uid = ? AND hook = ?");
+                stmtInsert = db.compileStatement(
+                        "INSERT OR REPLACE INTO assignment" +
+                                " (package, uid, hook, installed, used, restricted, exception," +
+                                " first_used, used_count, restricted_count)" +
+                                " VALUES (?, ?, ?, -1, -1, 0, NULL, -1, 0, 0)");
+
+                for (Bundle assignment : changes) {
+                    List<String> hookids = assignment.getStringArrayList("hooks");
+                    String packageName = assignment.getString("packageName");
+                    int uid = assignment.getInt("uid");
+                    boolean delete = assignment.getBoolean("delete");
+                    Log.i(TAG, packageName + ":" + uid + " hooks=" + hookids.size() + " delete=" + delete);
+
+                    SQLiteStatement stmt = (delete ? stmtDelete : stmtInsert);
+                    for (String hookid : hookids) {
+                        stmt.clearBindings();
+                        bindAssignment(stmt, 1, packageName, uid, hookid);
+                        if (delete)
+                            stmt.executeUpdateDelete();
+                        else if (stmt.executeInsert() < 0)
                             throw new Throwable("Error inserting assignment");
                     }
 
+                    if (assignment.getBoolean("kill"))
+                        kill.add(packageName + ":" + uid);
+                }
+
                 db.setTransactionSuccessful();
             } finally {
+                if (stmtDelete != null)
+                    stmtDelete.close();
+                if (stmtInsert != null)
+                    stmtInsert.close();
                 db.endTransaction();
             }
+
+            for (Bundle assignment : changes)
+                updateAssignments(
+                        assignment.getString("packageName"),
+                        assignment.getInt("uid"),
+                        assignment.getStringArrayList("hooks"),
+                        assignment.getBoolean("delete"));
         } finally {
             dbLock.writeLock().unlock();
         }
 
-        if (kill) {
+        for (Bundle assignment : changes)
+            notifyDataChanged(context, assignment.getString("packageName"), assignment.getInt("uid"));
+
+        if (kill.size() > 0) {
             // Access activity manager as system user
             long ident = Binder.clearCallingIdentity();
             try {
                 // public void forceStopPackageAsUser(String packageName, int userId)
                 ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
                 Method mForceStop = am.getClass().getMethod("forceStopPackageAsUser", String.class, int.class);
-                mForceStop.invoke(am, packageName, Util.getUserId(uid));
+                for (String app : kill) {
+                    int i = app.lastIndexOf(':');
+                    String packageName = app.substring(0, i);
+                    int uid = Integer.parseInt(app.substring(i + 1));
+                    Log.i(TAG, "Force stop " + packageName + ":" + uid);
+                    try {
+                        mForceStop.invoke(am, packageName, Util.getUserId(uid));
+                    } catch (Throwable ex) {
+                        Log.e(TAG, Log.getStackTraceString(ex));
+                    }
+                }
             } finally {
                 Binder.restoreCallingIdentity(ident);
             }
@@ -302,116 +821,177 @@ class XSettings {
         return new Bundle();
     }
 
+    // Should be called holding the database write lock
+    private static void updateAssignments(String packageName, int uid, List<String> hookids, boolean delete) {
+        String key = packageName + ":" + uid;
+        Set<String> updated = new HashSet<>();
+        Set<String> existing = assignments.get(key);
+        if (existing != null)
+            updated.addAll(existing);
+        if (delete)
+            updated.removeAll(hookids);
+        else
+            updated.addAll(hookids);
+
+        // Readers use the sets without locking, so never modify a set in place
+        if (updated.size() == 0)
+            assignments.remove(key);
+        else
+            assignments.put(key, Collections.unmodifiableSet(updated));
+    }
+
     private static Bundle getAssignedHooks(Context context, Bundle extras) throws Throwable {
         ArrayList<XHook> assigned = new ArrayList<>();
+        Bundle resolved = new Bundle();
+        Bundle unresolvable = new Bundle();
+        Snapshot current = snapshot;
 
         String packageName = extras.getString("packageName");
         int uid = extras.getInt("uid");
 
-        dbLock.readLock().lock();
-        try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
-                try {
-                    cursor = db.query(
-                            "assignment",
-                            new String[]{"hook"},
-                            "package = ? AND uid = ?",
-                            new String[]{packageName, Integer.toString(uid)},
-                            null, null, null);
-                    int colHook = cursor.getColumnIndex("hook");
-                    while (cursor.moveToNext()) {
-                        String hookid = cursor.getString(colHook);
-                        synchronized (lock) {
-                            if (hooks.containsKey(hookid)) {
-                                XHook hook = hooks.get(hookid);
-                                if ("android.content.ContentResolver".equals(hook.getClassName())) {
-                                    String className = context.getContentResolver().getClass().getName();
-                                    hook.setClassName(className);
-                                    Log.i(TAG, hook.getId() + " class name=" + className);
-                                }
-                                assigned.add(hook);
-                            } else
-                                Log.w(TAG, "Hook " + hookid + " not found");
-                        }
-                    }
-                } finally {
-                    if (cursor != null)
-                        cursor.close();
-                }
-
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+        Set<String> hookids = assignments.get(packageName + ":" + uid);
+        if (hookids != null)
+            for (String hookid : hookids) {
+                XHook hook = current.hooks.get(hookid);
+                if (hook != null) {
+                    Resolution resolution = resolutions.get(hookid);
+                    if (resolution == null)
+                        assigned.add(hook);
+                    else if (resolution.exception == null) {
+                        resolved.putString(hookid, resolution.declaringClass);
+                        assigned.add(hook);
+                    } else
+                        unresolvable.putString(hookid, resolution.exception);
+                } else
+                    Log.w(TAG, "Hook " + hookid + " not found");
             }
-        } finally {
-            dbLock.readLock().unlock();
-        }
 
         Bundle result = new Bundle();
-        result.putParcelableArrayList("hooks", assigned);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            // Send indices into the shared catalog instead of the hooks
+            XCatalog shared = current.getCatalog();
+            int[] indices = new int[assigned.size()];
+            for (int i = 0; i < assigned.size(); i++)
+                indices[i] = shared.indexOf(assigned.get(i).getId());
+            result.putParcelable("catalog", shared.getMemory());
+            result.putIntArray("indices", indices);
+        } else
+            result.putParcelableArrayList("hooks", assigned);
+        result.putBundle("resolved", resolved);
+        result.putBundle("unresolvable", unresolvable);
         return result;
     }
 
     @SuppressLint("MissingPermission")
     private static Bundle report(Context context, Bundle extras) throws Throwable {
-        String hook = extras.getString("hook");
         String packageName = extras.getString("packageName");
         int uid = extras.getInt("uid");
-        String event = extras.getString("event");
-        Bundle data = extras.getBundle("data");
+        List<Bundle> reports = extras.getParcelableArrayList("reports");
 
         if (uid != Binder.getCallingUid())
             throw new SecurityException();
 
-        Log.i(TAG, "Hook " + hook + " pkg=" + packageName + ":" + uid + " event=" + event);
-        for (String key : data.keySet())
-            Log.i(TAG, key + "=" + data.get(key));
+        // Check hook resolution results
+        Map<String, Resolution> resolved = new HashMap<>();
+        for (Bundle report : reports)
+            if ("install".equals(report.getString("event"))) {
+                Resolution resolution = getResolution(report.getString("hook"), report.getBundle("data"));
+                if (resolution != null)
+                    resolved.put(report.getString("hook"), resolution);
+            }
 
-        // Store event
-        dbLock.writeLock().lock();
-        try {
-            db.beginTransaction();
+        // Store hook resolution results
+        if (resolved.size() > 0) {
+            dbLock.writeLock().lock();
             try {
-                ContentValues cv = new ContentValues();
-                if ("install".equals(event))
-                    cv.put("installed", new Date().getTime());
-                else if ("use".equals(event)) {
-                    cv.put("used", new Date().getTime());
-                    if (data.containsKey("restricted"))
-                        cv.put("restricted", data.getInt("restricted"));
-                }
-                if (data.containsKey("exception"))
-                    cv.put("exception", data.getString("exception"));
+                db.beginTransaction();
+                SQLiteStatement stmtResolution = null;
+                try {
+                    stmtResolution = db.compileStatement(
+                            "INSERT OR REPLACE INTO resolution (fingerprint, hook, class, exception)" +
+                                    " VALUES (?, ?, ?, ?)");
+                    for (String hook : resolved.keySet()) {
+                        Resolution resolution = resolved.get(hook);
+                        stmtResolution.clearBindings();
+                        stmtResolution.bindString(1, getResolutionKey());
+                        stmtResolution.bindString(2, hook);
+                        if (resolution.declaringClass == null)
+                            stmtResolution.bindNull(3);
+                        else
+                            stmtResolution.bindString(3, resolution.declaringClass);
+                        if (resolution.exception == null)
+                            stmtResolution.bindNull(4);
+                        else
+                            stmtResolution.bindString(4, resolution.exception);
+                        stmtResolution.executeInsert();
+                    }
 
-                long rows = db.update("assignment", cv,
-                        "package = ? AND uid = ? AND hook = ?",
-                        new String[]{packageName, Integer.toString(uid), hook});
-                if (rows < 1)
-                    Log.i(TAG, packageName + ":" + uid + "/" + hook + " not updated");
+                    db.setTransactionSuccessful();
 
-                db.setTransactionSuccessful();
+                    resolutions.putAll(resolved);
+                } finally {
+                    if (stmtResolution != null)
+                        stmtResolution.close();
+                    db.endTransaction();
+                }
             } finally {
-                db.endTransaction();
+                dbLock.writeLock().unlock();
+            }
+        }
+
+        // Store events
+        String exception = null;
+        List<XJournal.Event> events = new ArrayList<>();
+        for (Bundle report : reports) {
+            String hook = report.getString("hook");
+            String event = report.getString("event");
+            Bundle data = report.getBundle("data");
+
+            Log.i(TAG, "Hook " + hook + " pkg=" + packageName + ":" + uid + " event=" + event);
+            for (String key : data.keySet())
+                Log.i(TAG, key + "=" + data.get(key));
+
+            long time = data.getLong("time", new Date().getTime());
+            if ("install".equals(event)) {
+                XJournal.Event install = newEvent(XJournal.INSTALL, packageName, uid, hook);
+                install.time = time;
+                events.add(install);
+            } else if ("use".equals(event)) {
+                XJournal.Event use = newEvent(XJournal.USE, packageName, uid, hook);
+                use.time = time;
+                use.restricted = data.getInt("restricted", 0);
+                use.first = data.getLong("first", time);
+                use.count = data.getInt("count", 1);
+                use.restrictedCount = data.getInt("restricted_count", data.getInt("restricted", 0));
+                events.add(use);
+
+                if (data.containsKey("histogram"))
+                    synchronized (stats) {
+                        String key = packageName + ":" + uid + "/" + hook;
+                        XStats s = stats.get(key);
+                        if (s == null) {
+                            s = new XStats(packageName, uid, hook);
+                            stats.put(key, s);
+                        }
+                        s.add(data.getInt("count", 1), data.getLong("total"), data.getIntArray("histogram"));
+                    }
+            }
+
+            if (data.containsKey("exception")) {
+                XJournal.Event ex = newEvent(XJournal.EXCEPTION, packageName, uid, hook);
+                ex.exception = data.getString("exception");
+                events.add(ex);
+                exception = hook;
             }
-        } finally {
-            dbLock.writeLock().unlock();
         }
+        appendJournal(events);
+
+        notifyDataChanged(context, packageName, uid);
 
         long ident = Binder.clearCallingIdentity();
         try {
-            // Notify data changed
-            // TODO: batch
-            Intent intent = new Intent();
-            intent.setAction(ACTION_DATA_CHANGED);
-            intent.setPackage(XSettings.class.getPackage().getName());
-            intent.putExtra("packageName", packageName);
-            intent.putExtra("uid", uid);
-            context.sendBroadcastAsUser(intent, Util.getUserHandle(uid));
-
             // Notify exception
-            if (data.containsKey("exception")) {
+            if (exception != null) {
                 Context ctx = Util.createContextForUser(context, Util.getUserId(uid));
                 PackageManager pm = ctx.getPackageManager();
                 String self = XSettings.class.getPackage().getName();
@@ -421,7 +1001,7 @@ class XSettings {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
                     builder.setChannelId(cChannelName);
                 builder.setSmallIcon(android.R.drawable.ic_dialog_alert);
-                builder.setContentTitle(resources.getString(R.string.msg_exception, hook));
+                builder.setContentTitle(resources.getString(R.string.msg_exception, exception));
                 builder.setContentText(pm.getApplicationLabel(pm.getApplicationInfo(packageName, 0)));
 
                 builder.setPriority(Notification.PRIORITY_HIGH);
@@ -445,35 +1025,323 @@ class XSettings {
         return new Bundle();
     }
 
-    private static Bundle getSetting(Context context, Bundle extras) throws Throwable {
-        int userid = extras.getInt("user");
-        String category = extras.getString("category");
-        String name = extras.getString("name");
+    private static Bundle getStats(Context context, Bundle extras) throws Throwable {
+        int userid = Util.getUserId(Binder.getCallingUid());
+        int start = Util.getUserUid(userid, 0);
+        int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+
+        ArrayList<XStats> result = new ArrayList<>();
+        synchronized (stats) {
+            for (XStats s : stats.values())
+                if (s.uid >= start && s.uid <= end) {
+                    XStats copy = new XStats(s.packageName, s.uid, s.hook);
+                    copy.add(s);
+                    result.add(copy);
+                }
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList("stats", result);
+        return bundle;
+    }
+
+    private static void fixClassName(Context context, XHook hook) {
+        if ("android.content.ContentResolver".equals(hook.getClassName())) {
+            String className = context.getContentResolver().getClass().getName();
+            hook.setClassName(className);
+            Log.i(TAG, hook.getId() + " class name=" + className);
+        }
+    }
+
+    // Should be called after a change has been written, so a client never misses it
+    // Changes are collected for a short time and sent as one broadcast per user
+    private static void notifyDataChanged(final Context context, String packageName, int uid) {
+        synchronized (sequences) {
+            sequences.put(packageName + ":" + uid, ++sequence);
+        }
+
+        final int userid = Util.getUserId(uid);
+        synchronized (subscribers) {
+            for (Subscriber subscriber : subscribers.values())
+                if (Util.getUserId(subscriber.uid) == userid)
+                    subscriber.pending.add(packageName + ":" + uid);
+        }
+
+        synchronized (changed) {
+            Set<String> apps = changed.get(userid);
+            if (apps == null) {
+                apps = new LinkedHashSet<>();
+                changed.put(userid, apps);
+                getHandler().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendDataChanged(context, userid);
+                    }
+                }, NOTIFY_DELAY);
+            }
+            apps.add(packageName + ":" + uid);
+        }
+    }
+
+    private static void sendDataChanged(Context context, int userid) {
+        Set<String> apps;
+        synchronized (changed) {
+            apps = changed.remove(userid);
+        }
+        if (apps == null)
+            return;
+
+        ArrayList<String> packageNames = new ArrayList<>();
+        int[] uids = new int[apps.size()];
+        for (String app : apps) {
+            int i = app.lastIndexOf(':');
+            uids[packageNames.size()] = Integer.parseInt(app.substring(i + 1));
+            packageNames.add(app.substring(0, i));
+        }
 
-        String value = null;
-        dbLock.readLock().lock();
+        Log.i(TAG, "Notify data changed user=" + userid + " apps=" + apps.size());
         try {
-            db.beginTransaction();
-            try {
-                Cursor cursor = null;
+            Intent intent = new Intent();
+            intent.setAction(ACTION_DATA_CHANGED);
+            intent.setPackage(XSettings.class.getPackage().getName());
+            intent.putStringArrayListExtra("packageNames", packageNames);
+            intent.putExtra("uids", uids);
+            context.sendBroadcastAsUser(intent, Util.getUserHandle(userid));
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        }
+
+        pushChanges(context);
+    }
+
+    private static long getSequence() {
+        synchronized (sequences) {
+            return sequence;
+        }
+    }
+
+    // Changes affecting all apps
+    private static void resetSequence(final Context context) {
+        synchronized (sequences) {
+            resetSequence = ++sequence;
+            sequences.clear();
+        }
+
+        synchronized (subscribers) {
+            if (subscribers.size() == 0)
+                return;
+            for (Subscriber subscriber : subscribers.values()) {
+                subscriber.pending.clear();
+                subscriber.reset = true;
+            }
+        }
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                pushChanges(context);
+            }
+        });
+    }
+
+    private static Handler getHandler() {
+        synchronized (changed) {
+            if (handler == null) {
+                HandlerThread thread = new HandlerThread("XLua.Settings", Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                handler = new Handler(thread.getLooper());
+            }
+            return handler;
+        }
+    }
+
+    private static XJournal.Event newEvent(int type, String packageName, int uid, String hook) {
+        XJournal.Event event = new XJournal.Event();
+        event.type = type;
+        event.packageName = packageName;
+        event.uid = uid;
+        event.hook = hook;
+        return event;
+    }
+
+    private static void appendJournal(List<XJournal.Event> events) throws Throwable {
+        synchronized (journalLock) {
+            if (journal == null) {
+                // Journal not available
+                dbLock.writeLock().lock();
                 try {
-                    cursor = db.query("setting", new String[]{"value"},
-                            "user = ? AND category = ? AND name = ?",
-                            new String[]{Integer.toString(userid), category, name},
-                            null, null, null);
-                    if (cursor.moveToNext())
-                        value = (cursor.isNull(0) ? null : cursor.getString(0));
+                    foldJournal(db, events, -1);
                 } finally {
-                    if (cursor != null)
-                        cursor.close();
+                    dbLock.writeLock().unlock();
                 }
+                return;
+            }
 
-                db.setTransactionSuccessful();
+            for (XJournal.Event event : events) {
+                if (!journal.append(event)) {
+                    compactJournal();
+                    if (!journal.append(event))
+                        throw new Throwable("Journal record too large");
+                }
+                journalPending = true;
+            }
+
+            // Schedule compaction
+            if (!compactScheduled) {
+                compactScheduled = true;
+                getHandler().postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compactJournal();
+                        } catch (Throwable ex) {
+                            Log.e(TAG, Log.getStackTraceString(ex));
+                        }
+                    }
+                }, COMPACT_DELAY);
+            }
+        }
+    }
+
+    // Fold the journal into the assignment table
+    // Takes the database write lock, but only if there are events to fold
+    private static void compactJournal() throws Throwable {
+        if (!journalPending)
+            return;
+
+        synchronized (journalLock) {
+            compactScheduled = false;
+            if (journal == null || journal.isEmpty())
+                return;
+
+            List<XJournal.Event> events = journal.read();
+            long generation = journal.getGeneration();
+            dbLock.writeLock().lock();
+            try {
+                foldJournal(db, events, generation);
             } finally {
-                db.endTransaction();
+                dbLock.writeLock().unlock();
+            }
+            journal.reset(generation + 1);
+            journalPending = false;
+            Log.i(TAG, "Compacted journal events=" + events.size());
+        }
+    }
+
+    // Should be called holding the database write lock
+    // The generation is stored in the same transaction, so a journal is never folded twice
+    private static void foldJournal(SQLiteDatabase db, List<XJournal.Event> events, long generation) {
+        db.beginTransaction();
+        SQLiteStatement stmtInstall = null;
+        SQLiteStatement stmtUse = null;
+        SQLiteStatement stmtException = null;
+        try {
+            stmtInstall = db.compileStatement(
+                    "UPDATE assignment SET installed = ?" +
+                            " WHERE package = ? AND uid = ? AND hook = ?");
+            stmtUse = db.compileStatement(
+                    "UPDATE assignment SET used = ?, restricted = ?," +
+                            " first_used = (CASE WHEN first_used IS NULL OR first_used < 0 THEN ? ELSE first_used END)," +
+                            " used_count = IFNULL(used_count, 0) + ?," +
+                            " restricted_count = IFNULL(restricted_count, 0) + ?" +
+                            " WHERE package = ? AND uid = ? AND hook = ?");
+            stmtException = db.compileStatement(
+                    "UPDATE assignment SET exception = ?" +
+                            " WHERE package = ? AND uid = ? AND hook = ?");
+
+            for (XJournal.Event event : events) {
+                long rows;
+                if (event.type == XJournal.INSTALL) {
+                    stmtInstall.clearBindings();
+                    stmtInstall.bindLong(1, event.time);
+                    bindAssignment(stmtInstall, 2, event.packageName, event.uid, event.hook);
+                    rows = stmtInstall.executeUpdateDelete();
+                } else if (event.type == XJournal.USE) {
+                    stmtUse.clearBindings();
+                    stmtUse.bindLong(1, event.time);
+                    stmtUse.bindLong(2, event.restricted);
+                    stmtUse.bindLong(3, event.first);
+                    stmtUse.bindLong(4, event.count);
+                    stmtUse.bindLong(5, event.restrictedCount);
+                    bindAssignment(stmtUse, 6, event.packageName, event.uid, event.hook);
+                    rows = stmtUse.executeUpdateDelete();
+                } else if (event.type == XJournal.EXCEPTION) {
+                    stmtException.clearBindings();
+                    stmtException.bindString(1, event.exception);
+                    bindAssignment(stmtException, 2, event.packageName, event.uid, event.hook);
+                    rows = stmtException.executeUpdateDelete();
+                } else
+                    rows = 0;
+
+                if (rows < 1)
+                    Log.i(TAG, event.packageName + ":" + event.uid + "/" + event.hook + " not updated");
             }
+
+            if (generation >= 0) {
+                ContentValues cv = new ContentValues();
+                cv.put("generation", generation);
+                db.update("journal", cv, null, null);
+            }
+
+            db.setTransactionSuccessful();
         } finally {
-            dbLock.readLock().unlock();
+            if (stmtInstall != null)
+                stmtInstall.close();
+            if (stmtUse != null)
+                stmtUse.close();
+            if (stmtException != null)
+                stmtException.close();
+            db.endTransaction();
+        }
+    }
+
+    // Results are verified by resolving here, so a single app cannot disable a hook for all apps
+    private static Resolution getResolution(String hookid, Bundle data) {
+        String declaringClass = data.getString("declaringClass");
+        if (declaringClass == null && !data.getBoolean("unresolvable"))
+            return null;
+
+        XHook hook = snapshot.hooks.get(hookid);
+        if (hook == null)
+            return null;
+
+        Resolution resolution = new Resolution();
+        try {
+            Method method = Xposed.resolveMethod(hook, XSettings.class.getClassLoader());
+            if (declaringClass == null) {
+                Log.w(TAG, "Hook " + hookid + " resolves, ignoring failure");
+                return null;
+            }
+            // Store the declaring class found here, not the reported one
+            resolution.declaringClass = method.getDeclaringClass().getName();
+            if (!resolution.declaringClass.equals(declaringClass))
+                Log.w(TAG, "Hook " + hookid + " declaring class " + resolution.declaringClass +
+                        " reported " + declaringClass);
+            return resolution;
+        } catch (Throwable ex) {
+            if (declaringClass != null) {
+                Log.w(TAG, "Hook " + hookid + " does not resolve, ignoring declaring class " + declaringClass);
+                return null;
+            }
+            resolution.exception = data.getString("exception");
+            return resolution;
+        }
+    }
+
+    private static void bindAssignment(SQLiteStatement stmt, int index, String packageName, int uid, String hook) {
+        stmt.bindString(index, packageName);
+        stmt.bindLong(index + 1, uid);
+        stmt.bindString(index + 2, hook);
+    }
+
+    private static Bundle getSetting(Context context, Bundle extras) throws Throwable {
+        int userid = extras.getInt("user");
+        String category = extras.getString("category");
+        String name = extras.getString("name");
+
+        String value;
+        synchronized (settings) {
+            Map<String, String> user = settings.get(userid);
+            value = (user == null ? null : user.get(category + ":" + name));
         }
 
         Log.i(TAG, "Get setting " + userid + ":" + category + ":" + name + "=" + value);
@@ -482,6 +1350,34 @@ class XSettings {
         return result;
     }
 
+    private static Bundle getSettings(Context context, Bundle extras) throws Throwable {
+        int userid = extras.getInt("user");
+        String category = extras.getString("category");
+
+        ArrayList<String> categories = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<String> values = new ArrayList<>();
+        synchronized (settings) {
+            Map<String, String> user = settings.get(userid);
+            if (user != null)
+                for (String key : user.keySet()) {
+                    String[] cn = key.split(":", 2);
+                    if (category == null || category.equals(cn[0])) {
+                        categories.add(cn[0]);
+                        names.add(cn[1]);
+                        values.add(user.get(key));
+                    }
+                }
+        }
+
+        Log.i(TAG, "Get settings " + userid + ":" + category + " count=" + names.size());
+        Bundle result = new Bundle();
+        result.putStringArrayList("categories", categories);
+        result.putStringArrayList("names", names);
+        result.putStringArrayList("values", values);
+        return result;
+    }
+
     private static Bundle putSetting(Context context, Bundle extras) throws Throwable {
         enforcePermission(context);
 
@@ -513,10 +1409,24 @@ class XSettings {
             } finally {
                 db.endTransaction();
             }
+
+            synchronized (settings) {
+                Map<String, String> user = settings.get(userid);
+                if (user == null) {
+                    user = new HashMap<>();
+                    settings.put(userid, user);
+                }
+                if (value == null)
+                    user.remove(category + ":" + name);
+                else
+                    user.put(category + ":" + name, value);
+            }
         } finally {
             dbLock.writeLock().unlock();
         }
 
+        notifySettingsChanged(context, userid);
+
         return new Bundle();
     }
 
@@ -526,6 +1436,18 @@ class XSettings {
         int userid = extras.getInt("user");
         Log.i(TAG, "Clearing data user=" + userid);
 
+        compactJournal();
+
+        synchronized (stats) {
+            int start = Util.getUserUid(userid, 0);
+            int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+            for (String key : new ArrayList<>(stats.keySet())) {
+                XStats s = stats.get(key);
+                if (userid == 0 || (s.uid >= start && s.uid <= end))
+                    stats.remove(key);
+            }
+        }
+
         dbLock.writeLock().lock();
         try {
             db.beginTransaction();
@@ -550,13 +1472,52 @@ class XSettings {
             } finally {
                 db.endTransaction();
             }
+
+            synchronized (settings) {
+                if (userid == 0)
+                    settings.clear();
+                else
+                    settings.remove(userid);
+            }
+
+            if (userid == 0)
+                assignments.clear();
+            else {
+                int start = Util.getUserUid(userid, 0);
+                int end = Util.getUserUid(userid, Process.LAST_APPLICATION_UID);
+                for (String key : new ArrayList<>(assignments.keySet())) {
+                    int uid = Integer.parseInt(key.substring(key.lastIndexOf(':') + 1));
+                    if (uid >= start && uid <= end)
+                        assignments.remove(key);
+                }
+            }
         } finally {
             dbLock.writeLock().unlock();
         }
 
+        resetSequence(context);
+
+        // Clearing user 0 clears the settings of all users
+        notifySettingsChanged(context, userid == 0 ? USER_ALL : userid);
+
         return new Bundle();
     }
 
+    private static void notifySettingsChanged(Context context, int userid) {
+        long ident = Binder.clearCallingIdentity();
+        try {
+            if (userid == USER_ALL)
+                Util.notifyChangeAsUser(context, URI_SETTINGS, USER_ALL);
+            else
+                Util.createContextForUser(context, userid).getContentResolver()
+                        .notifyChange(URI_SETTINGS, null, false);
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+        } finally {
+            Binder.restoreCallingIdentity(ident);
+        }
+    }
+
     private static void enforcePermission(Context context) throws SecurityException {
         // Access package manager as system user
         long ident = Binder.clearCallingIdentity();
@@ -587,13 +1548,153 @@ class XSettings {
         PackageManager pm = context.getPackageManager();
         String self = XSettings.class.getPackage().getName();
         ApplicationInfo ai = pm.getApplicationInfo(self, 0);
-        for (XHook hook : XHook.readHooks(ai.publicSourceDir))
+        List<XHook> read = XHook.readHooks(ai.publicSourceDir);
+        compileHooks(read);
+        for (XHook hook : read) {
+            fixClassName(context, hook);
             result.put(hook.getId(), hook);
+        }
         Log.i(TAG, "Loaded hooks=" + result.size());
         return result;
     }
 
-    private static SQLiteDatabase getDatabase() {
+    private static void compileHooks(List<XHook> hooks) throws Throwable {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        synchronized (scripts) {
+            Map<String, Script> compiled = new HashMap<>();
+            for (XHook hook : hooks) {
+                if (hook.getLuaScript() == null) {
+                    hook.setLuaBytecode(null);
+                    hook.setLuaFunctions(false, false);
+                    continue;
+                }
+
+                byte[] source = hook.getLuaScript().getBytes();
+                String hash = Util.toHex(digest.digest(source));
+                if (!compiled.containsKey(hash))
+                    if (scripts.containsKey(hash))
+                        compiled.put(hash, scripts.get(hash));
+                    else {
+                        // Compile script into a binary chunk
+                        Prototype prototype = LuaC.instance.compile(new ByteArrayInputStream(source), "script");
+                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                        DumpState.dump(prototype, bos, false);
+
+                        Script script = new Script();
+                        script.bytecode = bos.toByteArray();
+                        script.before = XRuntime.defines(prototype, "before");
+                        script.after = XRuntime.defines(prototype, "after");
+                        compiled.put(hash, script);
+                        Log.i(TAG, "Compiled " + hook.getId() + " hash=" + hash +
+                                " before=" + script.before + " after=" + script.after);
+                    }
+
+                Script script = compiled.get(hash);
+                hook.setLuaBytecode(script.bytecode);
+                hook.setLuaFunctions(script.before, script.after);
+            }
+
+            // Drop scripts not used anymore
+            scripts.clear();
+            scripts.putAll(compiled);
+        }
+    }
+
+    private static class Script {
+        byte[] bytecode;
+        boolean before;
+        boolean after;
+    }
+
+    // Immutable version of the hook catalog, replaced as a whole when hooks are put
+    // Readers should get the snapshot once and can use it without locking
+    private static class Snapshot {
+        final int version;
+        final Map<String, XHook> hooks;
+        private XCatalog catalog = null;
+
+        Snapshot(int version, Map<String, XHook> hooks) {
+            this.version = version;
+            this.hooks = Collections.unmodifiableMap(hooks);
+        }
+
+        synchronized XCatalog getCatalog() throws Throwable {
+            if (this.catalog == null)
+                this.catalog = XCatalog.create(this.hooks.values());
+            return this.catalog;
+        }
+    }
+
+    // Apps not yet sent by a paged getApps call
+    private static class Pages {
+        final int uid;
+        final long sequence;
+        long time;
+        private final List<XApp> apps;
+        private int offset = 0;
+
+        Pages(int uid, long sequence, List<XApp> apps) {
+            this.uid = uid;
+            this.sequence = sequence;
+            this.time = new Date().getTime();
+            this.apps = apps;
+        }
+
+        ArrayList<XApp> next(int limit) {
+            int end = Math.min(this.offset + Math.max(limit, 1), this.apps.size());
+            ArrayList<XApp> page = new ArrayList<>(this.apps.subList(this.offset, end));
+            this.offset = end;
+            this.time = new Date().getTime();
+            return page;
+        }
+
+        boolean hasNext() {
+            return (this.offset < this.apps.size());
+        }
+    }
+
+    // Client receiving pushed changes
+    private static class Subscriber implements IBinder.DeathRecipient {
+        final IBinder binder;
+        final Messenger messenger;
+        final int uid;
+        final Set<String> pending = new HashSet<>(); // package:uid
+        boolean reset = false;
+        long sent = 0; // elapsed realtime of unacknowledged message
+
+        Subscriber(IBinder binder, int uid) {
+            this.binder = binder;
+            this.messenger = new Messenger(binder);
+            this.uid = uid;
+        }
+
+        @Override
+        public void binderDied() {
+            synchronized (subscribers) {
+                subscribers.remove(this.binder);
+                Log.i(TAG, "Subscriber died uid=" + this.uid + " subscribers=" + subscribers.size());
+            }
+        }
+    }
+
+    private static class Label {
+        int versionCode;
+        String locale;
+        String label;
+    }
+
+    // Resolutions depend on the build and on the hook definitions of the module version
+    private static String getResolutionKey() {
+        return Build.FINGERPRINT + "/" + version;
+    }
+
+    // Hook resolution result on this build
+    private static class Resolution {
+        String declaringClass;
+        String exception;
+    }
+
+    private static SQLiteDatabase getDatabase() throws Throwable {
         // Build database file
         File dbFile = new File(
                 Environment.getDataDirectory() + File.separator +
@@ -606,6 +1707,19 @@ class XSettings {
         SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
         Log.i(TAG, "Database version=" + db.getVersion() + " file=" + dbFile);
 
+        // Readers do not block and are not blocked by the writer
+        // Reads do not need a transaction or the database lock
+        boolean wal = db.enableWriteAheadLogging();
+        Log.i(TAG, "Database wal=" + wal);
+
+        // Open usage journal
+        try {
+            journal = new XJournal(new File(dbFile.getParentFile(), "xlua.journal"));
+        } catch (Throwable ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            journal = null;
+        }
+
         // Set database file permissions
         // Owner: rwx (system)
         // Group: rwx (system)
@@ -636,6 +1750,75 @@ class XSettings {
                 }
             }
 
+            if (db.needUpgrade(2)) {
+                db.beginTransaction();
+                try {
+                    // Aggregated usage counters
+                    db.execSQL("ALTER TABLE assignment ADD COLUMN first_used INTEGER DEFAULT -1");
+                    db.execSQL("ALTER TABLE assignment ADD COLUMN used_count INTEGER DEFAULT 0");
+                    db.execSQL("ALTER TABLE assignment ADD COLUMN restricted_count INTEGER DEFAULT 0");
+
+                    db.setVersion(2);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (db.needUpgrade(3)) {
+                db.beginTransaction();
+                try {
+                    // Hook resolution results per build
+                    db.execSQL("CREATE TABLE resolution (fingerprint TEXT NOT NULL, hook TEXT NOT NULL, class TEXT, exception TEXT)");
+                    db.execSQL("CREATE UNIQUE INDEX idx_resolution ON resolution(fingerprint, hook)");
+
+                    db.setVersion(3);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (db.needUpgrade(4)) {
+                db.beginTransaction();
+                try {
+                    // Assignments of users by uid range
+                    db.execSQL("CREATE INDEX idx_assignment_uid ON assignment(uid)");
+
+                    db.setVersion(4);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (db.needUpgrade(5)) {
+                db.beginTransaction();
+                try {
+                    // Last journal generation folded into the assignment table
+                    db.execSQL("CREATE TABLE journal (generation INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO journal (generation) VALUES (0)");
+
+                    db.setVersion(5);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            // Replay usage journal
+            if (journal != null) {
+                long folded = DatabaseUtils.longForQuery(db, "SELECT generation FROM journal", null);
+                long generation = journal.getGeneration();
+                if (generation > folded && !journal.isEmpty()) {
+                    List<XJournal.Event> events = journal.read();
+                    foldJournal(db, events, generation);
+                    Log.i(TAG, "Replayed journal generation=" + generation + " events=" + events.size());
+                }
+                if (!journal.isEmpty() || generation <= folded)
+                    journal.reset(Math.max(generation, folded) + 1);
+            }
+
             // Reset usage data
             ContentValues cv = new ContentValues();
             cv.put("installed", -1);
@@ -643,6 +1826,75 @@ class XSettings {
             long rows = db.update("assignment", cv, null, null);
             Log.i(TAG, "Reset assigned hook data count=" + rows);
 
+            // Load settings
+            Cursor cursor = null;
+            try {
+                cursor = db.query("setting", new String[]{"user", "category", "name", "value"},
+                        null, null, null, null, null);
+                synchronized (settings) {
+                    settings.clear();
+                    while (cursor.moveToNext()) {
+                        int userid = cursor.getInt(0);
+                        Map<String, String> user = settings.get(userid);
+                        if (user == null) {
+                            user = new HashMap<>();
+                            settings.put(userid, user);
+                        }
+                        if (!cursor.isNull(3))
+                            user.put(cursor.getString(1) + ":" + cursor.getString(2), cursor.getString(3));
+                    }
+                    Log.i(TAG, "Loaded settings users=" + settings.size());
+                }
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            // Load assignments
+            cursor = null;
+            try {
+                cursor = db.query("assignment", new String[]{"package", "uid", "hook"},
+                        null, null, null, null, null);
+                Map<String, Set<String>> loaded = new HashMap<>();
+                while (cursor.moveToNext()) {
+                    String key = cursor.getString(0) + ":" + cursor.getInt(1);
+                    Set<String> hookids = loaded.get(key);
+                    if (hookids == null) {
+                        hookids = new HashSet<>();
+                        loaded.put(key, hookids);
+                    }
+                    hookids.add(cursor.getString(2));
+                }
+                assignments.clear();
+                for (String key : loaded.keySet())
+                    assignments.put(key, Collections.unmodifiableSet(loaded.get(key)));
+                Log.i(TAG, "Loaded assigned apps=" + assignments.size());
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
+            // Load hook resolution results of this build and module version
+            rows = db.delete("resolution", "fingerprint <> ?", new String[]{getResolutionKey()});
+            Log.i(TAG, "Deleted resolutions of other builds count=" + rows);
+            cursor = null;
+            try {
+                cursor = db.query("resolution", new String[]{"hook", "class", "exception"},
+                        "fingerprint = ?", new String[]{getResolutionKey()},
+                        null, null, null);
+                resolutions.clear();
+                while (cursor.moveToNext()) {
+                    Resolution resolution = new Resolution();
+                    resolution.declaringClass = cursor.getString(1);
+                    resolution.exception = cursor.getString(2);
+                    resolutions.put(cursor.getString(0), resolution);
+                }
+                Log.i(TAG, "Loaded resolutions=" + resolutions.size());
+            } finally {
+                if (cursor != null)
+                    cursor.close();
+            }
+
             return db;
         } finally {
             dbLock.writeLock().unlock();
@@ -668,13 +1920,60 @@ class XSettings {
     }
 
     static boolean getSettingBoolean(Context context, int user, String category, String name) {
+        return Boolean.parseBoolean(getSetting(context, user, category, name));
+    }
+
+    // Settings are cached per process and user until a change is notified
+    static String getSetting(Context context, int user, String category, String name) {
+        // The system process hosts the settings cache itself
+        if (Process.myUid() == Process.SYSTEM_UID) {
+            Bundle args = new Bundle();
+            args.putInt("user", user);
+            args.putString("category", category);
+            args.putString("name", name);
+            Bundle result = context.getContentResolver()
+                    .call(XSettings.URI, "xlua", "getSetting", args);
+            return result.getString("value");
+        }
+
+        long generation;
+        synchronized (cache) {
+            if (observer == null) {
+                observer = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        Log.i(TAG, "Settings changed");
+                        invalidateCache();
+                    }
+                };
+                context.getContentResolver().registerContentObserver(URI_SETTINGS, false, observer);
+            }
+
+            Map<String, String> cached = cache.get(user);
+            if (cached != null)
+                return cached.get(category + ":" + name);
+            generation = cacheGeneration;
+        }
+
+        // Get all settings of the user at once
         Bundle args = new Bundle();
         args.putInt("user", user);
-        args.putString("category", category);
-        args.putString("name", name);
         Bundle result = context.getContentResolver()
-                .call(XSettings.URI, "xlua", "getSetting", args);
-        return Boolean.parseBoolean(result.getString("value"));
+                .call(XSettings.URI, "xlua", "getSettings", args);
+        List<String> categories = result.getStringArrayList("categories");
+        List<String> names = result.getStringArrayList("names");
+        List<String> values = result.getStringArrayList("values");
+
+        Map<String, String> loaded = new HashMap<>();
+        for (int i = 0; i < names.size(); i++)
+            loaded.put(categories.get(i) + ":" + names.get(i), values.get(i));
+
+        synchronized (cache) {
+            if (generation == cacheGeneration)
+                cache.put(user, loaded);
+        }
+
+        return loaded.get(category + ":" + name);
     }
 
     static void putSettingBoolean(Context context, String category, String name, boolean value) {
@@ -685,5 +1984,13 @@ class XSettings {
         args.putString("value", Boolean.toString(value));
         context.getContentResolver()
                 .call(XSettings.URI, "xlua", "putSetting", args);
+        invalidateCache();
+    }
+
+    private static void invalidateCache() {
+        synchronized (cache) {
+            cache.clear();
+            cacheGeneration++;
+        }
     }
 }
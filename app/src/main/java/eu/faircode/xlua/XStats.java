@@ -0,0 +1,131 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.util.Locale;
+
+// Execution time statistics of a hook in an app
+// Bucket i of the histogram counts executions taking less than 2^i microseconds
+public class XStats implements Parcelable {
+    static final int BUCKETS = 32;
+
+    String packageName;
+    int uid;
+    String hook;
+    long count = 0;
+    long total = 0; // nanoseconds
+    long[] histogram = new long[BUCKETS];
+
+    public XStats() {
+    }
+
+    XStats(String packageName, int uid, String hook) {
+        this.packageName = packageName;
+        this.uid = uid;
+        this.hook = hook;
+    }
+
+    static int getBucket(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    void add(long count, long total, int[] histogram) {
+        this.count += count;
+        this.total += total;
+        for (int i = 0; i < BUCKETS && i < histogram.length; i++)
+            this.histogram[i] += histogram[i];
+    }
+
+    void add(XStats other) {
+        this.count += other.count;
+        this.total += other.total;
+        for (int i = 0; i < BUCKETS; i++)
+            this.histogram[i] += other.histogram[i];
+    }
+
+    // Upper bound in microseconds of the bucket containing the percentile
+    long getPercentile(int percentile) {
+        long rank = (this.count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.histogram[i];
+            if (seen >= rank && seen > 0)
+                return 1L << i;
+        }
+        return 0;
+    }
+
+    static String formatMicros(long micros) {
+        if (micros < 1000)
+            return String.format(Locale.getDefault(), "%d µs", micros);
+        else
+            return String.format(Locale.getDefault(), "%.1f ms", micros / 1000f);
+    }
+
+    public static final Parcelable.Creator<XStats> CREATOR = new Parcelable.Creator<XStats>() {
+        public XStats createFromParcel(Parcel in) {
+            return new XStats(in);
+        }
+
+        public XStats[] newArray(int size) {
+            return new XStats[size];
+        }
+    };
+
+    private XStats(Parcel in) {
+        readFromParcel(in);
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        out.writeString(this.packageName);
+        out.writeInt(this.uid);
+        out.writeString(this.hook);
+        out.writeLong(this.count);
+        out.writeLong(this.total);
+        out.writeLongArray(this.histogram);
+    }
+
+    private void readFromParcel(Parcel in) {
+        this.packageName = in.readString();
+        this.uid = in.readInt();
+        this.hook = in.readString();
+        this.count = in.readLong();
+        this.total = in.readLong();
+        this.histogram = in.createLongArray();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return this.packageName + ":" + this.uid + "/" + this.hook +
+                " count=" + this.count +
+                " p50=" + getPercentile(50) + " p95=" + getPercentile(95) + " p99=" + getPercentile(99);
+    }
+}
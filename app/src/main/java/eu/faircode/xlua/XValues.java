@@ -0,0 +1,118 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Named values per object for use by scripts
+// Objects are compared by identity and weakly referenced
+// The store is split into stripes, so threads working on different objects do not contend
+class XValues {
+    private static final int STRIPES = 16; // power of two
+
+    private static final Object NULL = new Object(); // values of static methods
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    static void put(Object obj, String name, Object value) {
+        if (obj == null)
+            obj = NULL;
+        stripes[indexOf(obj)].put(obj, name, value);
+    }
+
+    static Object get(Object obj, String name) {
+        if (obj == null)
+            obj = NULL;
+        return stripes[indexOf(obj)].get(obj, name);
+    }
+
+    private static int indexOf(Object obj) {
+        int h = System.identityHashCode(obj);
+        h ^= (h >>> 16);
+        return h & (STRIPES - 1);
+    }
+
+    private static class Stripe {
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        private final Map<Key, Map<String, Object>> values = new HashMap<>();
+
+        synchronized void put(Object obj, String name, Object value) {
+            expunge();
+            Key key = new Key(obj, queue);
+            Map<String, Object> map = values.get(key);
+            if (map == null) {
+                map = new ConcurrentHashMap<>();
+                values.put(key, map);
+            }
+            if (value == null)
+                map.remove(name);
+            else
+                map.put(name, value);
+        }
+
+        Object get(Object obj, String name) {
+            Map<String, Object> map;
+            synchronized (this) {
+                map = values.get(new Key(obj, null));
+            }
+            return (map == null ? null : map.get(name));
+        }
+
+        // Remove values of garbage collected objects
+        private void expunge() {
+            Object key;
+            while ((key = queue.poll()) != null)
+                values.remove(key);
+        }
+    }
+
+    private static class Key extends WeakReference<Object> {
+        private final int hash;
+
+        Key(Object obj, ReferenceQueue<Object> queue) {
+            super(obj, queue);
+            this.hash = System.identityHashCode(obj);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other)
+                return true;
+            if (!(other instanceof Key))
+                return false;
+            Object obj = get();
+            return (obj != null && obj == ((Key) other).get());
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+}
@@ -33,17 +33,13 @@ import android.os.Bundle;
 import android.os.Process;
 import android.util.Log;
 
-import org.luaj.vm2.Globals;
-import org.luaj.vm2.LuaClosure;
-import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaError;
 import org.luaj.vm2.Prototype;
-import org.luaj.vm2.Varargs;
 import org.luaj.vm2.compiler.LuaC;
-import org.luaj.vm2.lib.OneArgFunction;
-import org.luaj.vm2.lib.jse.CoerceJavaToLua;
-import org.luaj.vm2.lib.jse.JsePlatform;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -104,6 +100,7 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                             Log.i(TAG, "Registering package listener user=" + userid);
                             IntentFilter ifPackageAdd = new IntentFilter();
                             ifPackageAdd.addAction(Intent.ACTION_PACKAGE_ADDED);
+                            ifPackageAdd.addAction(Intent.ACTION_PACKAGE_CHANGED);
                             ifPackageAdd.addAction(Intent.ACTION_PACKAGE_FULLY_REMOVED);
                             ifPackageAdd.addDataScheme("package");
                             Util.createContextForUser(context, userid).registerReceiver(packageChangedReceiver, ifPackageAdd);
@@ -175,8 +172,14 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                             Bundle result = app.getContentResolver()
                                     .call(XSettings.URI, "xlua", "getAssignedHooks", args);
                             result.setClassLoader(XHook.class.getClassLoader());
-                            List<XHook> hooks = result.getParcelableArrayList("hooks");
-                            hookPackage(app, lpparam, uid, hooks);
+                            List<XHook> hooks;
+                            if (result.containsKey("catalog"))
+                                hooks = XCatalog.read(result.getParcelable("catalog"), result.getIntArray("indices"));
+                            else
+                                hooks = result.getParcelableArrayList("hooks");
+                            Bundle resolved = result.getBundle("resolved");
+                            Bundle unresolvable = result.getBundle("unresolvable");
+                            hookPackage(app, lpparam, uid, hooks, resolved, unresolvable);
                             Log.i(TAG, "Applied " + lpparam.packageName + ":" + uid + " hooks=" + hooks.size());
                         }
                     } catch (Throwable ex) {
@@ -188,95 +191,84 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
         }
     }
 
-    private void hookPackage(final Context context, final XC_LoadPackage.LoadPackageParam lpparam, final int uid, List<XHook> hooks) {
-        for (final XHook hook : hooks)
-            try {
-                // Compile script
-                InputStream is = new ByteArrayInputStream(hook.getLuaScript().getBytes());
-                final Prototype script = LuaC.instance.compile(is, "script");
-
-                // Get class
-                Class<?> cls = Class.forName(hook.getClassName(), false, lpparam.classLoader);
-                String[] m = hook.getMethodName().split(":");
-                if (m.length > 1) {
-                    Field field = cls.getField(m[0]);
-                    Object obj = field.get(null);
-                    cls = obj.getClass();
-                }
-
-                // Get parameter types
-                String[] p = hook.getParameterTypes();
-                Class<?>[] params = new Class[p.length];
-                for (int i = 0; i < p.length; i++)
-                    params[i] = resolveClass(p[i], lpparam.classLoader);
+    private void hookPackage(final Context context, final XC_LoadPackage.LoadPackageParam lpparam, final int uid,
+                             List<XHook> hooks, Bundle resolved, Bundle unresolvable) {
+        // Nothing to install or report
+        if (hooks.size() == 0 && (unresolvable == null || unresolvable.isEmpty()))
+            return;
 
-                // Get return type
-                Class<?> ret = resolveClass(hook.getReturnType(), lpparam.classLoader);
+        XReporter reporter = new XReporter(context, lpparam.packageName, uid);
 
-                // Get method
-                Method method = resolveMethod(cls, m[m.length - 1], params);
-
-                // Check return type
-                if (!method.getReturnType().equals(ret))
-                    throw new Throwable("Invalid return type got " + method.getReturnType() + " expected " + ret);
+        // Hooks known not to resolve on this build
+        if (unresolvable != null)
+            for (String hookid : unresolvable.keySet()) {
+                Bundle data = new Bundle();
+                data.putString("exception", unresolvable.getString(hookid));
+                reporter.report(hookid, "install", data);
+            }
 
-                // Hook method
-                XposedBridge.hookMethod(method, new XC_MethodHook() {
-                    @Override
-                    protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
-                        execute(param, "before");
+        for (final XHook hook : hooks) {
+            boolean resolving = true;
+            try {
+                // Resolve method, using the declaring class known for this build if any
+                String declaringClass = (resolved == null ? null : resolved.getString(hook.getId()));
+                Method method = null;
+                if (declaringClass != null)
+                    try {
+                        method = resolveMethod(hook, declaringClass, lpparam.classLoader);
+                    } catch (ReflectiveOperationException ex) {
+                        Log.w(TAG, hook.getId() + " declaring class " + declaringClass + " " + ex);
                     }
+                if (method == null)
+                    method = resolveMethod(hook, lpparam.classLoader);
+                resolving = false;
+
+                final Handler handler;
+                if (hook.getAction() == null)
+                    handler = new LuaHandler(reporter, lpparam.packageName, uid, hook);
+                else
+                    handler = new ActionHandler(reporter, lpparam.packageName, uid, hook, XAction.get(hook));
+
+                // Check which phases the hook handles
+                boolean before = handler.hasBefore();
+                boolean after = handler.hasAfter();
+                if (!before && !after)
+                    throw new Throwable("No before or after function");
 
-                    @Override
-                    protected void afterHookedMethod(MethodHookParam param) throws Throwable {
-                        execute(param, "after");
-                    }
+                // Hook method
+                if (before && after)
+                    XposedBridge.hookMethod(method, new XC_MethodHook() {
+                        @Override
+                        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                            handler.execute(param, "before");
+                        }
 
-                    // Execute hook
-                    private void execute(MethodHookParam param, String function) {
-                        try {
-                            // Initialize LUA runtime
-                            Globals globals = JsePlatform.standardGlobals();
-                            LuaClosure closure = new LuaClosure(script, globals);
-                            closure.call();
-
-                            // Check if function exists
-                            LuaValue func = globals.get(function);
-                            if (!func.isnil()) {
-                                // Setup globals
-                                globals.set("log", new OneArgFunction() {
-                                    @Override
-                                    public LuaValue call(LuaValue arg) {
-                                        Log.i(TAG, lpparam.packageName + ":" + uid + " " + arg.checkjstring());
-                                        return LuaValue.NIL;
-                                    }
-                                });
-
-                                // Run function
-                                Varargs result = func.invoke(
-                                        CoerceJavaToLua.coerce(hook),
-                                        CoerceJavaToLua.coerce(new XParam(lpparam.packageName, uid, param))
-                                );
-
-                                // Report use
-                                Bundle data = new Bundle();
-                                data.putString("function", function);
-                                data.putInt("restricted", result.arg1().checkboolean() ? 1 : 0);
-                                report(context, hook.getId(), lpparam.packageName, uid, "use", data);
-                            }
-                        } catch (Throwable ex) {
-                            Log.e(TAG, Log.getStackTraceString(ex));
-
-                            // Report use error
-                            Bundle data = new Bundle();
-                            data.putString("function", function);
-                            data.putString("exception", Log.getStackTraceString(ex));
-                            report(context, hook.getId(), lpparam.packageName, uid, "use", data);
+                        @Override
+                        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                            handler.execute(param, "after");
                         }
-                    }
-                });
+                    });
+                else if (before)
+                    XposedBridge.hookMethod(method, new XC_MethodHook() {
+                        @Override
+                        protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                            handler.execute(param, "before");
+                        }
+                    });
+                else
+                    XposedBridge.hookMethod(method, new XC_MethodHook() {
+                        @Override
+                        protected void afterHookedMethod(MethodHookParam param) throws Throwable {
+                            handler.execute(param, "after");
+                        }
+                    });
 
                 // Report install
+                Bundle data = new Bundle();
+                if (!method.getDeclaringClass().getName().equals(declaringClass) &&
+                        method.getDeclaringClass().getClassLoader() == Context.class.getClassLoader())
+                    data.putString("declaringClass", method.getDeclaringClass().getName());
+                reporter.report(hook.getId(), "install", data);
             } catch (Throwable ex) {
                 Log.e(TAG, Log.getStackTraceString(ex));
 
@@ -284,19 +276,147 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                 Bundle data = new Bundle();
                 data.putString("exception", ex.toString());
                 data.putString("stacktrace", Log.getStackTraceString(ex));
-                report(context, hook.getId(), lpparam.packageName, uid, "install", data);
+                data.putBoolean("unresolvable", resolving);
+                reporter.report(hook.getId(), "install", data);
             }
+        }
     }
 
-    private static void report(Context context, String hook, String packageName, int uid, String event, Bundle data) {
-        Bundle args = new Bundle();
-        args.putString("hook", hook);
-        args.putString("packageName", packageName);
-        args.putInt("uid", uid);
-        args.putString("event", event);
-        args.putBundle("data", data);
-        context.getContentResolver()
-                .call(XSettings.URI, "xlua", "report", args);
+    static abstract class Handler {
+        final XReporter reporter;
+        final String packageName;
+        final int uid;
+        final XHook hook;
+
+        private final XPredicate[] predicates;
+        private final XReporter.Usage usageBefore;
+        private final XReporter.Usage usageAfter;
+
+        Handler(XReporter reporter, String packageName, int uid, XHook hook) {
+            this.reporter = reporter;
+            this.packageName = packageName;
+            this.uid = uid;
+            this.hook = hook;
+            this.predicates = (hook.getPredicates() == null
+                    ? new XPredicate[0]
+                    : hook.getPredicates().toArray(new XPredicate[0]));
+            this.usageBefore = reporter.getUsage(hook.getId(), "before");
+            this.usageAfter = reporter.getUsage(hook.getId(), "after");
+        }
+
+        abstract boolean hasBefore();
+
+        abstract boolean hasAfter();
+
+        // Returns if the call was restricted
+        abstract boolean run(XC_MethodHook.MethodHookParam param, String function) throws Throwable;
+
+        // Execute hook, allocating no memory other than what the hook itself needs,
+        // which for a Lua script is at least one luaj call frame
+        void execute(XC_MethodHook.MethodHookParam param, String function) {
+            // Skip irrelevant calls
+            for (XPredicate predicate : predicates)
+                if (!predicate.matches(param.args))
+                    return;
+
+            try {
+                long start = System.nanoTime();
+                boolean restricted = run(param, function);
+                long elapsed = System.nanoTime() - start;
+
+                // Report use
+                ("before".equals(function) ? usageBefore : usageAfter).used(restricted, elapsed);
+            } catch (Throwable ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+
+                // Report use error
+                Bundle data = new Bundle();
+                data.putString("function", function);
+                data.putString("exception", Log.getStackTraceString(ex));
+                reporter.report(hook.getId(), "use", data);
+            }
+        }
+    }
+
+    static class LuaHandler extends Handler {
+        private final boolean lazy;
+        private volatile Prototype script = null;
+
+        // Lua runtime per thread
+        private final ThreadLocal<XRuntime> runtime = new ThreadLocal<XRuntime>() {
+            @Override
+            protected XRuntime initialValue() {
+                return new XRuntime(hook, getScript(), packageName, uid);
+            }
+        };
+
+        LuaHandler(XReporter reporter, String packageName, int uid, XHook hook) {
+            super(reporter, packageName, uid, hook);
+
+            // Defer loading the script until the first call when the system determined the defined functions,
+            // else load the script now to find out which functions it defines
+            this.lazy = (hook.hasLuaBytecode() && (hook.isLuaBefore() || hook.isLuaAfter()));
+            if (!this.lazy)
+                runtime.get();
+        }
+
+        private Prototype getScript() {
+            if (script == null)
+                synchronized (this) {
+                    if (script == null)
+                        try {
+                            // Compile only if the system did not provide bytecode
+                            if (hook.hasLuaBytecode())
+                                script = LoadState.undump(hook.openLuaBytecode(), "script");
+                            else {
+                                InputStream is = new ByteArrayInputStream(hook.getLuaScript().getBytes());
+                                script = LuaC.instance.compile(is, "script");
+                            }
+                        } catch (IOException ex) {
+                            throw new LuaError(ex);
+                        }
+                }
+            return script;
+        }
+
+        @Override
+        boolean hasBefore() {
+            return (lazy ? hook.isLuaBefore() : !runtime.get().getFunction("before").isnil());
+        }
+
+        @Override
+        boolean hasAfter() {
+            return (lazy ? hook.isLuaAfter() : !runtime.get().getFunction("after").isnil());
+        }
+
+        @Override
+        boolean run(XC_MethodHook.MethodHookParam param, String function) {
+            return runtime.get().call(function, param);
+        }
+    }
+
+    static class ActionHandler extends Handler {
+        private final XAction action;
+
+        ActionHandler(XReporter reporter, String packageName, int uid, XHook hook, XAction action) {
+            super(reporter, packageName, uid, hook);
+            this.action = action;
+        }
+
+        @Override
+        boolean hasBefore() {
+            return action.isBefore();
+        }
+
+        @Override
+        boolean hasAfter() {
+            return !action.isBefore();
+        }
+
+        @Override
+        boolean run(XC_MethodHook.MethodHookParam param, String function) throws Throwable {
+            return action.execute(param);
+        }
     }
 
     private static Class<?> resolveClass(String name, ClassLoader loader) throws ClassNotFoundException {
@@ -310,6 +430,66 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
             return Class.forName(name, false, loader);
     }
 
+    static Method resolveMethod(XHook hook, ClassLoader loader) throws Throwable {
+        // Get class
+        Class<?> cls = resolveHookClass(hook, loader);
+        String[] m = hook.getMethodName().split(":");
+
+        // Get parameter types
+        Class<?>[] params = resolveParameterTypes(hook, loader);
+
+        // Get return type
+        Class<?> ret = resolveClass(hook.getReturnType(), loader);
+
+        // Get method
+        Method method = resolveMethod(cls, m[m.length - 1], params);
+
+        // Check return type
+        if (!method.getReturnType().equals(ret))
+            throw new Throwable("Invalid return type got " + method.getReturnType() + " expected " + ret);
+
+        return method;
+    }
+
+    // Fast path for a previously resolved method
+    // The declaring class should be the hook class or one of its superclasses
+    private static Method resolveMethod(XHook hook, String declaringClass, ClassLoader loader) throws ReflectiveOperationException {
+        Class<?> cls = resolveHookClass(hook, loader);
+        while (cls != null && !cls.getName().equals(declaringClass))
+            cls = cls.getSuperclass();
+        if (cls == null)
+            throw new ClassNotFoundException(declaringClass + " is not a superclass of " + hook.getClassName());
+
+        String[] m = hook.getMethodName().split(":");
+        Method method = cls.getDeclaredMethod(m[m.length - 1], resolveParameterTypes(hook, loader));
+
+        Class<?> ret = resolveClass(hook.getReturnType(), loader);
+        if (!method.getReturnType().equals(ret))
+            throw new NoSuchMethodException("Invalid return type got " + method.getReturnType() + " expected " + ret);
+
+        return method;
+    }
+
+    // Class of the hook or of the object in the field of the hook
+    private static Class<?> resolveHookClass(XHook hook, ClassLoader loader) throws ReflectiveOperationException {
+        Class<?> cls = Class.forName(hook.getClassName(), false, loader);
+        String[] m = hook.getMethodName().split(":");
+        if (m.length > 1) {
+            Field field = cls.getField(m[0]);
+            Object obj = field.get(null);
+            cls = obj.getClass();
+        }
+        return cls;
+    }
+
+    private static Class<?>[] resolveParameterTypes(XHook hook, ClassLoader loader) throws ClassNotFoundException {
+        String[] p = hook.getParameterTypes();
+        Class<?>[] params = new Class[p.length];
+        for (int i = 0; i < p.length; i++)
+            params[i] = resolveClass(p[i], loader);
+        return params;
+    }
+
     private static Method resolveMethod(Class<?> cls, String name, Class<?>[] params) throws NoSuchMethodException {
         while (cls != null)
             try {
@@ -332,6 +512,17 @@ public class Xposed implements IXposedHookZygoteInit, IXposedHookLoadPackage {
                 boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
                 Log.i(TAG, "Received " + intent);
 
+                // Update installed apps
+                Bundle changed = new Bundle();
+                changed.putString("packageName", packageName);
+                changed.putInt("uid", uid);
+                changed.putBoolean("removed", Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(intent.getAction()));
+                context.getContentResolver()
+                        .call(XSettings.URI, "xlua", "packageChanged", changed);
+
+                if (Intent.ACTION_PACKAGE_CHANGED.equals(intent.getAction()))
+                    return;
+
                 // Get hooks
                 Bundle result = context.getContentResolver()
                         .call(XSettings.URI, "xlua", "getHooks", new Bundle());
@@ -0,0 +1,212 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import android.content.ComponentCallbacks;
+import android.content.ContextWrapper;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.luaj.vm2.Globals;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.jse.CoerceJavaToLua;
+import org.luaj.vm2.lib.jse.JsePlatform;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+// Allocations of the non-restricting hook invocation path in steady state
+public class AllocationTest {
+    private static final int CALLS = 100000;
+    private static final String SCRIPT = "function after(hook, param) return false end";
+
+    private com.sun.management.ThreadMXBean bean;
+    private XReporter reporter;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        reporter = new XReporter(new ContextWrapper(null) {
+            @Override
+            public void registerComponentCallbacks(ComponentCallbacks callback) {
+            }
+        }, "test", 10000);
+    }
+
+    @Test
+    public void executePredicateMiss() throws Throwable {
+        XHook hook = getHook("action: 'cursor_empty'," +
+                "predicates: [{argument: 0, type: 'equals', values: ['match']}]");
+        final Xposed.Handler handler = new Xposed.ActionHandler(reporter, "test", 10000, hook, XAction.get(hook));
+        final XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.args = new Object[]{"other"};
+
+        long bytes = measure(new Call() {
+            @Override
+            public void run() {
+                handler.execute(param, "after");
+            }
+        });
+
+        assertEquals(0, bytes);
+    }
+
+    @Test
+    public void executeActionNotRestricting() throws Throwable {
+        XHook hook = getHook("action: 'cursor_empty'," +
+                "predicates: [{argument: 0, type: 'equals', values: ['match']}]");
+        final Xposed.Handler handler = new Xposed.ActionHandler(reporter, "test", 10000, hook, XAction.get(hook));
+        final XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.args = new Object[]{"match"};
+        param.setResult(null); // nothing to replace
+
+        // Includes matching predicates, timing and counting the use
+        long bytes = measure(new Call() {
+            @Override
+            public void run() {
+                handler.execute(param, "after");
+            }
+        });
+
+        assertEquals(0, bytes);
+    }
+
+    @Test
+    public void executeScriptNotRestricting() throws Throwable {
+        XHook hook = getHook("luaScript: '" + SCRIPT + "'");
+        final Xposed.Handler handler = new Xposed.LuaHandler(reporter, "test", 10000, hook);
+        final XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.args = new Object[0];
+
+        long bytes = measure(new Call() {
+            @Override
+            public void run() {
+                handler.execute(param, "after");
+            }
+        });
+
+        // Not zero: luaj allocates the value stack of every call frame, the handler adds nothing to that
+        assertEquals(measureFrame(hook, param), bytes);
+    }
+
+    @Test
+    public void actionNotRestricting() throws Throwable {
+        XHook hook = XHook.fromJSON("{" +
+                "collection: 'Test', group: 'Test', name: 'cursor', author: 'Test'," +
+                "className: 'android.content.ContentResolver', methodName: 'query'," +
+                "parameterTypes: [], returnType: 'android.database.Cursor'," +
+                "minSdk: 1, maxSdk: 999, enabled: true, action: 'cursor_empty'}");
+        final XAction action = XAction.get(hook);
+        final XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.args = new Object[0];
+        param.setResult(null); // nothing to replace
+
+        long bytes = measure(new Call() {
+            @Override
+            public void run() throws Throwable {
+                if (action.execute(param))
+                    throw new AssertionError("Restricted");
+            }
+        });
+
+        assertEquals(0, bytes);
+    }
+
+    @Test
+    public void scriptNotRestricting() throws Throwable {
+        Prototype prototype = LuaC.instance.compile(new ByteArrayInputStream(SCRIPT.getBytes()), "script");
+
+        XHook hook = new XHook();
+        final XRuntime runtime = new XRuntime(hook, prototype, "test", 10000);
+        final XC_MethodHook.MethodHookParam param = new XC_MethodHook.MethodHookParam();
+        param.args = new Object[0];
+
+        long bytes = measure(new Call() {
+            @Override
+            public void run() {
+                if (runtime.call("after", param))
+                    throw new AssertionError("Restricted");
+            }
+        });
+
+        // luaj allocates the value stack of every call frame, the runtime adds nothing to that
+        assertEquals(measureFrame(hook, param), bytes);
+        assertFalse(runtime.call("after", param));
+    }
+
+    private static XHook getHook(String definition) throws Throwable {
+        return XHook.fromJSON("{" +
+                "collection: 'Test', group: 'Test', name: 'cursor', author: 'Test'," +
+                "className: 'android.content.ContentResolver', methodName: 'query'," +
+                "parameterTypes: [], returnType: 'android.database.Cursor'," +
+                "minSdk: 1, maxSdk: 999, enabled: true, " + definition + "}");
+    }
+
+    // Bytes allocated per call of the script function directly on luaj
+    private long measureFrame(XHook hook, XC_MethodHook.MethodHookParam param) throws Throwable {
+        Prototype prototype = LuaC.instance.compile(new ByteArrayInputStream(SCRIPT.getBytes()), "script");
+        Globals globals = JsePlatform.standardGlobals();
+        new LuaClosure(prototype, globals).call();
+        final LuaValue after = globals.get("after");
+        final LuaValue luaHook = CoerceJavaToLua.coerce(hook);
+        final LuaValue luaParam = CoerceJavaToLua.coerce(new XParam("test", 10000, param));
+        return measure(new Call() {
+            @Override
+            public void run() {
+                if (after.call(luaHook, luaParam).checkboolean())
+                    throw new AssertionError("Restricted");
+            }
+        });
+    }
+
+    private interface Call {
+        void run() throws Throwable;
+    }
+
+    // Bytes allocated per call after warming up
+    private long measure(Call call) throws Throwable {
+        for (int i = 0; i < CALLS; i++)
+            call.run();
+
+        long thread = Thread.currentThread().getId();
+        long empty = bean.getThreadAllocatedBytes(thread);
+        empty = bean.getThreadAllocatedBytes(thread) - empty;
+
+        long start = bean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CALLS; i++)
+            call.run();
+        long allocated = bean.getThreadAllocatedBytes(thread) - start - empty;
+
+        return allocated / CALLS;
+    }
+}
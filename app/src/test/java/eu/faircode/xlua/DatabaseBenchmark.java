@@ -0,0 +1,259 @@
+/*
+    This file is part of XPrivacy/Lua.
+
+    XPrivacy/Lua is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    XPrivacy/Lua is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with XPrivacy/Lua.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2017-2018 Marcel Bokhorst (M66B)
+ */
+
+package eu.faircode.xlua;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Listing and usage write paths of the settings database with and without write-ahead logging
+// Runs the statements of XSettings on the SQLite of sqlite-jdbc, which is close to the version of Android 8,
+// so the numbers show the relative difference only, not the performance on a device
+public class DatabaseBenchmark {
+    private static final int USERS = 2;
+    private static final int APPS = 150;
+    private static final int HOOKS = 80;
+    private static final int RUNS = 50;
+    private static final int FOLD = 50; // journal events
+
+    private static final String LIST = "SELECT package, uid, hook, installed, used, restricted, exception," +
+            " first_used, used_count, restricted_count FROM assignment";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(0);
+
+    @Test
+    public void rollbackJournal() throws Throwable {
+        run(false);
+    }
+
+    @Test
+    public void writeAheadLog() throws Throwable {
+        run(true);
+    }
+
+    private void run(boolean wal) throws Throwable {
+        File file = new File(folder.getRoot(), "xlua.db");
+        final Connection db = open(file, wal);
+        create(db);
+
+        long listing = median(new Call() {
+            @Override
+            public void run() throws Throwable {
+                assertEquals(APPS * HOOKS, list(db));
+            }
+        });
+
+        long delta = median(new Call() {
+            @Override
+            public void run() throws Throwable {
+                assertEquals(5 * HOOKS, listDelta(db));
+            }
+        });
+
+        long fold = median(new Call() {
+            @Override
+            public void run() throws Throwable {
+                fold(db);
+            }
+        });
+
+        // Listing while usage is folded
+        // Without write-ahead logging Android uses one connection, so a listing waits for the writer
+        final Connection reader = (wal ? open(file, true) : db);
+        final boolean[] stop = new boolean[]{false};
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop[0])
+                        synchronized (db) {
+                            fold(db);
+                        }
+                } catch (Throwable ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+        });
+        writer.start();
+        long concurrent = median(new Call() {
+            @Override
+            public void run() throws Throwable {
+                synchronized (reader) {
+                    assertEquals(APPS * HOOKS, list(reader));
+                }
+            }
+        });
+        stop[0] = true;
+        writer.join();
+
+        System.out.println("wal=" + wal +
+                " listing=" + listing / 1000 + " us" +
+                " delta=" + delta / 1000 + " us" +
+                " fold=" + fold / 1000 + " us" +
+                " listing while folding=" + concurrent / 1000 + " us");
+
+        if (reader != db)
+            reader.close();
+        db.close();
+    }
+
+    private static Connection open(File file, boolean wal) throws Throwable {
+        Connection db = DriverManager.getConnection("jdbc:sqlite:" + file);
+        Statement stmt = db.createStatement();
+        // Android 8 defaults
+        stmt.execute("PRAGMA journal_mode = " + (wal ? "WAL" : "TRUNCATE"));
+        stmt.execute("PRAGMA synchronous = FULL");
+        stmt.close();
+        return db;
+    }
+
+    // Schema version 4 of XSettings.getDatabase
+    private static void create(Connection db) throws Throwable {
+        Statement stmt = db.createStatement();
+        stmt.execute("CREATE TABLE assignment (package TEXT NOT NULL, uid INTEGER NOT NULL, hook TEXT NOT NULL," +
+                " installed INTEGER, used INTEGER, restricted INTEGER, exception TEXT," +
+                " first_used INTEGER DEFAULT -1, used_count INTEGER DEFAULT 0, restricted_count INTEGER DEFAULT 0)");
+        stmt.execute("CREATE UNIQUE INDEX idx_assignment ON assignment(package, uid, hook)");
+        stmt.execute("CREATE INDEX idx_assignment_uid ON assignment(uid)");
+        stmt.close();
+
+        db.setAutoCommit(false);
+        PreparedStatement insert = db.prepareStatement(
+                "INSERT OR REPLACE INTO assignment" +
+                        " (package, uid, hook, installed, used, restricted, exception," +
+                        " first_used, used_count, restricted_count)" +
+                        " VALUES (?, ?, ?, -1, -1, 0, NULL, -1, 0, 0)");
+        for (int user = 0; user < USERS; user++)
+            for (int app = 0; app < APPS; app++)
+                for (int hook = 0; hook < HOOKS; hook++) {
+                    insert.setString(1, "package" + app);
+                    insert.setInt(2, user * 100000 + 10000 + app);
+                    insert.setString(3, "hook" + hook);
+                    insert.executeUpdate();
+                }
+        insert.close();
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    // getApps of user 0
+    private static int list(Connection db) throws Throwable {
+        PreparedStatement stmt = db.prepareStatement(LIST + " WHERE uid >= ? AND uid <= ?");
+        stmt.setInt(1, 0);
+        stmt.setInt(2, 99999);
+        int rows = read(stmt);
+        stmt.close();
+        return rows;
+    }
+
+    // getApps of changed apps only
+    private int listDelta(Connection db) throws Throwable {
+        PreparedStatement stmt = db.prepareStatement(LIST + " WHERE uid IN (?, ?, ?, ?, ?)");
+        int[] apps = new int[APPS];
+        for (int i = 0; i < APPS; i++)
+            apps[i] = i;
+        for (int i = 0; i < 5; i++) {
+            int j = i + random.nextInt(APPS - i);
+            int app = apps[j];
+            apps[j] = apps[i];
+            stmt.setInt(i + 1, 10000 + app);
+        }
+        int rows = read(stmt);
+        stmt.close();
+        return rows;
+    }
+
+    private static int read(PreparedStatement stmt) throws Throwable {
+        int rows = 0;
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            for (int i = 1; i <= 10; i++)
+                rs.getObject(i);
+            rows++;
+        }
+        rs.close();
+        return rows;
+    }
+
+    // XSettings.foldJournal of usage reports
+    private void fold(Connection db) throws Throwable {
+        db.setAutoCommit(false);
+        PreparedStatement stmt = db.prepareStatement(
+                "UPDATE assignment SET used = ?, restricted = ?," +
+                        " first_used = (CASE WHEN first_used IS NULL OR first_used < 0 THEN ? ELSE first_used END)," +
+                        " used_count = IFNULL(used_count, 0) + ?," +
+                        " restricted_count = IFNULL(restricted_count, 0) + ?" +
+                        " WHERE package = ? AND uid = ? AND hook = ?");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < FOLD; i++) {
+            int app;
+            int hook;
+            synchronized (random) {
+                app = random.nextInt(APPS);
+                hook = random.nextInt(HOOKS);
+            }
+            stmt.setLong(1, now);
+            stmt.setInt(2, 0);
+            stmt.setLong(3, now);
+            stmt.setInt(4, 1);
+            stmt.setInt(5, 0);
+            stmt.setString(6, "package" + app);
+            stmt.setInt(7, 10000 + app);
+            stmt.setString(8, "hook" + hook);
+            assertEquals(1, stmt.executeUpdate());
+        }
+        stmt.close();
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    private interface Call {
+        void run() throws Throwable;
+    }
+
+    // Median nanoseconds after warming up
+    private static long median(Call call) throws Throwable {
+        for (int i = 0; i < RUNS / 5; i++)
+            call.run();
+
+        long[] elapsed = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            call.run();
+            elapsed[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(elapsed);
+        return elapsed[RUNS / 2];
+    }
+}